@@ -0,0 +1,350 @@
+package assign11;
+
+import java.util.stream.IntStream;
+
+/**
+ * This class converts colors between RGB and the luma, YCbCr and HSV color
+ * spaces using fixed-point integer arithmetic only. Coefficients are scaled by
+ * 2^16, so each conversion is a few integer multiplies, adds and shifts.
+ *
+ * The methods that take channel planes (one byte array per channel, as used by
+ * the planar layout of Image) convert a range of pixels in place with simple
+ * loops the JIT compiler can vectorize; parallelFor splits such work across
+ * the available processors. The methods that take a packed int convert one
+ * pixel, with the channels packed as in Pixel.getPackedRGB.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public final class ColorConversion {
+
+	/**
+	 * The standard weights for computing luma from red, green and blue.
+	 */
+	public enum Luma {
+		/** ITU-R BT.601 (standard definition video, JPEG): 0.299, 0.587, 0.114 */
+		REC_601(19595, 38470, 7471),
+		/** ITU-R BT.709 (HD video, sRGB): 0.2126, 0.7152, 0.0722 */
+		REC_709(13933, 46871, 4732);
+
+		private final int red;
+		private final int green;
+		private final int blue;
+
+		private Luma(int red, int green, int blue) {
+			this.red = red;
+			this.green = green;
+			this.blue = blue;
+		}
+	}
+
+	/**
+	 * A piece of work over the index range from (inclusive) to to (exclusive).
+	 */
+	interface RangeTask {
+		void run(int from, int to);
+	}
+
+	/** Number of hue steps in a full turn of the color wheel (256 per sextant). */
+	public static final int HUE_RANGE = 6 * 256;
+
+	/**
+	 * Largest saturation percentage accepted by saturate. The fixed-point scale
+	 * of larger ones overflows, and from about 12800 on every color that has
+	 * any chroma is pushed to the edge of the range anyway.
+	 */
+	public static final int MAX_SATURATION_PERCENT = 10000;
+
+	private static final int ONE = 1 << 16;
+	private static final int HALF = 1 << 15;
+	private static final int MIN_RANGE_LENGTH = 1 << 14;
+
+	private ColorConversion() {
+	}
+
+	/**
+	 * Computes the luma of a color.
+	 *
+	 * @param rgb      - the packed color.
+	 * @param standard - the luma weights to use.
+	 * @return - the luma, 0-255.
+	 */
+	public static int luma(int rgb, Luma standard) {
+		return (standard.red * ((rgb >> 16) & 255) + standard.green * ((rgb >> 8) & 255) + standard.blue * (rgb & 255)
+				+ HALF) >> 16;
+	}
+
+	/**
+	 * Converts a color to full-range YCbCr as used by JPEG (BT.601 weights).
+	 *
+	 * @param rgb - the packed color.
+	 * @return - Y, Cb and Cr, each 0-255, packed in the same positions as red,
+	 *         green and blue.
+	 */
+	public static int rgbToYCbCr(int rgb) {
+		int r = (rgb >> 16) & 255, g = (rgb >> 8) & 255, b = rgb & 255;
+		int y = (19595 * r + 38470 * g + 7471 * b + HALF) >> 16;
+		int cb = clamp(((-11059 * r - 21709 * g + 32768 * b + HALF) >> 16) + 128);
+		int cr = clamp(((32768 * r - 27439 * g - 5329 * b + HALF) >> 16) + 128);
+		return (y << 16) | (cb << 8) | cr;
+	}
+
+	/**
+	 * Converts a full-range YCbCr color back to RGB.
+	 *
+	 * @param yCbCr - Y, Cb and Cr packed as returned by rgbToYCbCr.
+	 * @return - the packed RGB color.
+	 */
+	public static int yCbCrToRgb(int yCbCr) {
+		int y = (yCbCr >> 16) & 255, cb = ((yCbCr >> 8) & 255) - 128, cr = (yCbCr & 255) - 128;
+		int r = clamp(y + ((91881 * cr + HALF) >> 16));
+		int g = clamp(y - ((22554 * cb + 46802 * cr + HALF) >> 16));
+		int b = clamp(y + ((116130 * cb + HALF) >> 16));
+		return (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Converts a color to HSV.
+	 *
+	 * @param rgb - the packed color.
+	 * @return - the hue (0 to HUE_RANGE - 1) in bits 16 and up, the saturation
+	 *         (0-255) in bits 8-15 and the value (0-255) in bits 0-7.
+	 */
+	public static int rgbToHsv(int rgb) {
+		int r = (rgb >> 16) & 255, g = (rgb >> 8) & 255, b = rgb & 255;
+		int max = Math.max(r, Math.max(g, b));
+		int min = Math.min(r, Math.min(g, b));
+		int delta = max - min;
+		if (delta == 0)
+			return max;
+
+		int s = (255 * delta + max / 2) / max;
+		int h;
+		if (max == r)
+			h = 256 * (g - b) / delta;
+		else if (max == g)
+			h = 512 + 256 * (b - r) / delta;
+		else
+			h = 1024 + 256 * (r - g) / delta;
+		if (h < 0)
+			h += HUE_RANGE;
+		return (h << 16) | (s << 8) | max;
+	}
+
+	/**
+	 * Converts an HSV color back to RGB.
+	 *
+	 * @param hsv - hue, saturation and value packed as returned by rgbToHsv.
+	 * @return - the packed RGB color.
+	 */
+	public static int hsvToRgb(int hsv) {
+		int h = (hsv >>> 16) % HUE_RANGE, s = (hsv >> 8) & 255, v = hsv & 255;
+		if (s == 0)
+			return (v << 16) | (v << 8) | v;
+
+		int sextant = h >> 8;
+		int f = h & 255;
+		int p = (v * (255 - s) + 127) / 255;
+		int q = (v * (255 * 256 - s * f) + 255 * 128) / (255 * 256);
+		int t = (v * (255 * 256 - s * (256 - f)) + 255 * 128) / (255 * 256);
+		switch (sextant) {
+		case 0:
+			return (v << 16) | (t << 8) | p;
+		case 1:
+			return (q << 16) | (v << 8) | p;
+		case 2:
+			return (p << 16) | (v << 8) | t;
+		case 3:
+			return (p << 16) | (q << 8) | v;
+		case 4:
+			return (t << 16) | (p << 8) | v;
+		default:
+			return (v << 16) | (p << 8) | q;
+		}
+	}
+
+	/**
+	 * Converts a color to its gray shade.
+	 *
+	 * @param rgb      - the packed color.
+	 * @param standard - the luma weights to use.
+	 * @return - the packed gray color.
+	 */
+	public static int grayscale(int rgb, Luma standard) {
+		int y = luma(rgb, standard);
+		return (y << 16) | (y << 8) | y;
+	}
+
+	/**
+	 * Replaces each pixel in the range with its gray shade.
+	 *
+	 * @param red      - the red plane.
+	 * @param green    - the green plane.
+	 * @param blue     - the blue plane.
+	 * @param standard - the luma weights to use.
+	 * @param from     - first pixel index (inclusive).
+	 * @param to       - last pixel index (exclusive).
+	 */
+	public static void grayscale(byte[] red, byte[] green, byte[] blue, Luma standard, int from, int to) {
+		int wr = standard.red, wg = standard.green, wb = standard.blue;
+		for (int i = from; i < to; i++) {
+			byte y = (byte) ((wr * (red[i] & 255) + wg * (green[i] & 255) + wb * (blue[i] & 255) + HALF) >> 16);
+			red[i] = y;
+			green[i] = y;
+			blue[i] = y;
+		}
+	}
+
+	/**
+	 * Applies the classic sepia tone matrix to a color.
+	 *
+	 * @param rgb - the packed color.
+	 * @return - the packed sepia color.
+	 */
+	public static int sepia(int rgb) {
+		int r = (rgb >> 16) & 255, g = (rgb >> 8) & 255, b = rgb & 255;
+		int sr = Math.min(255, (25756 * r + 50397 * g + 12386 * b + HALF) >> 16);
+		int sg = Math.min(255, (22872 * r + 44958 * g + 11010 * b + HALF) >> 16);
+		int sb = Math.min(255, (17826 * r + 34996 * g + 8585 * b + HALF) >> 16);
+		return (sr << 16) | (sg << 8) | sb;
+	}
+
+	/**
+	 * Applies the classic sepia tone matrix to each pixel in the range.
+	 *
+	 * @param red   - the red plane.
+	 * @param green - the green plane.
+	 * @param blue  - the blue plane.
+	 * @param from  - first pixel index (inclusive).
+	 * @param to    - last pixel index (exclusive).
+	 */
+	public static void sepia(byte[] red, byte[] green, byte[] blue, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int r = red[i] & 255, g = green[i] & 255, b = blue[i] & 255;
+			red[i] = (byte) Math.min(255, (25756 * r + 50397 * g + 12386 * b + HALF) >> 16);
+			green[i] = (byte) Math.min(255, (22872 * r + 44958 * g + 11010 * b + HALF) >> 16);
+			blue[i] = (byte) Math.min(255, (17826 * r + 34996 * g + 8585 * b + HALF) >> 16);
+		}
+	}
+
+	/**
+	 * Scales the chroma (Cb and Cr) of a color, keeping its luma.
+	 *
+	 * @param rgb     - the packed color.
+	 * @param percent - the new saturation as a percentage of the old; 0 gives gray,
+	 *                100 leaves the color unchanged. At most
+	 *                MAX_SATURATION_PERCENT.
+	 * @return - the packed adjusted color.
+	 * @throws IllegalArgumentException if percent is out of range.
+	 */
+	public static int saturate(int rgb, int percent) {
+		checkSaturation(percent);
+		if (percent == 100)
+			return rgb;
+		int scale = percent * ONE / 100;
+		int ycc = rgbToYCbCr(rgb);
+		int cb = clamp(128 + ((((ycc >> 8) & 255) - 128) * scale >> 16));
+		int cr = clamp(128 + (((ycc & 255) - 128) * scale >> 16));
+		return yCbCrToRgb((ycc & 0xff0000) | (cb << 8) | cr);
+	}
+
+	/**
+	 * Scales the chroma (Cb and Cr) of each pixel in the range, keeping its luma.
+	 *
+	 * @param red     - the red plane.
+	 * @param green   - the green plane.
+	 * @param blue    - the blue plane.
+	 * @param percent - the new saturation as a percentage of the old, at most
+	 *                MAX_SATURATION_PERCENT.
+	 * @param from    - first pixel index (inclusive).
+	 * @param to      - last pixel index (exclusive).
+	 * @throws IllegalArgumentException if percent is out of range.
+	 */
+	public static void saturate(byte[] red, byte[] green, byte[] blue, int percent, int from, int to) {
+		checkSaturation(percent);
+		if (percent == 100)
+			return;
+		int scale = percent * ONE / 100;
+		for (int i = from; i < to; i++) {
+			int r = red[i] & 255, g = green[i] & 255, b = blue[i] & 255;
+			int y = (19595 * r + 38470 * g + 7471 * b + HALF) >> 16;
+			int cb = clamp(((-11059 * r - 21709 * g + 32768 * b + HALF) >> 16) + 128) - 128;
+			int cr = clamp(((32768 * r - 27439 * g - 5329 * b + HALF) >> 16) + 128) - 128;
+			cb = clamp(128 + (cb * scale >> 16)) - 128;
+			cr = clamp(128 + (cr * scale >> 16)) - 128;
+			red[i] = (byte) clamp(y + ((91881 * cr + HALF) >> 16));
+			green[i] = (byte) clamp(y - ((22554 * cb + 46802 * cr + HALF) >> 16));
+			blue[i] = (byte) clamp(y + ((116130 * cb + HALF) >> 16));
+		}
+	}
+
+	private static void checkSaturation(int percent) {
+		if (percent < 0 || percent > MAX_SATURATION_PERCENT)
+			throw new IllegalArgumentException("percent must be in range 0-" + MAX_SATURATION_PERCENT);
+	}
+
+	/**
+	 * Rotates the hue of a color around the color wheel.
+	 *
+	 * @param rgb   - the packed color.
+	 * @param shift - the rotation in hue steps (HUE_RANGE is a full turn).
+	 * @return - the packed adjusted color.
+	 */
+	public static int shiftHue(int rgb, int shift) {
+		if (Math.floorMod(shift, HUE_RANGE) == 0)
+			return rgb;
+		int hsv = rgbToHsv(rgb);
+		int h = Math.floorMod((hsv >>> 16) + shift, HUE_RANGE);
+		return hsvToRgb((h << 16) | (hsv & 0xffff));
+	}
+
+	/**
+	 * Rotates the hue of each pixel in the range around the color wheel.
+	 *
+	 * @param red   - the red plane.
+	 * @param green - the green plane.
+	 * @param blue  - the blue plane.
+	 * @param shift - the rotation in hue steps (HUE_RANGE is a full turn).
+	 * @param from  - first pixel index (inclusive).
+	 * @param to    - last pixel index (exclusive).
+	 */
+	public static void shiftHue(byte[] red, byte[] green, byte[] blue, int shift, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int rgb = shiftHue(((red[i] & 255) << 16) | ((green[i] & 255) << 8) | (blue[i] & 255), shift);
+			red[i] = (byte) (rgb >> 16);
+			green[i] = (byte) (rgb >> 8);
+			blue[i] = (byte) rgb;
+		}
+	}
+
+	/**
+	 * Converts an angle in degrees to hue steps.
+	 *
+	 * @param degrees - the angle.
+	 * @return - the same angle in hue steps.
+	 */
+	public static int degreesToHue(int degrees) {
+		return Math.floorMod(degrees, 360) * HUE_RANGE / 360;
+	}
+
+	/**
+	 * Splits the indexes from 0 to length into ranges and runs the task on each
+	 * range, in parallel when the work is large enough to be worth it.
+	 *
+	 * @param length - number of indexes.
+	 * @param task   - the work to run on each range.
+	 */
+	static void parallelFor(int length, RangeTask task) {
+		int ranges = Math.min(4 * Runtime.getRuntime().availableProcessors(), length / MIN_RANGE_LENGTH);
+		if (ranges <= 1) {
+			task.run(0, length);
+			return;
+		}
+		IntStream.range(0, ranges).parallel().forEach(
+				range -> task.run((int) ((long) length * range / ranges), (int) ((long) length * (range + 1) / ranges)));
+	}
+
+	private static int clamp(int value) {
+		return Math.min(255, Math.max(0, value));
+	}
+}
@@ -0,0 +1,65 @@
+package assign11;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class represents a limit on the total memory held by all open documents.
+ * When the documents in memory exceed the limit, the ones used least recently
+ * are chosen to be spilled to disk.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class DocumentMemoryBudget {
+
+	private final long maxBytes;
+
+	/**
+	 * Creates a new budget.
+	 *
+	 * @param maxBytes - estimated number of bytes all documents may hold together.
+	 */
+	public DocumentMemoryBudget(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Chooses the documents to spill so that the rest fit within the budget. The
+	 * active document and documents with unfinished jobs are never chosen, so the
+	 * result may still leave the documents over budget.
+	 *
+	 * @param documents - all open documents.
+	 * @param active    - the document currently shown, or null.
+	 * @return - the documents to spill, least recently used first.
+	 */
+	public List<ImageDocument> selectForSpill(List<ImageDocument> documents, ImageDocument active) {
+		long total = 0;
+		ArrayList<ImageDocument> candidates = new ArrayList<ImageDocument>();
+		for (ImageDocument document : documents) {
+			total += document.estimateBytes();
+			if (document != active && document.isLoaded() && !document.isBusy())
+				candidates.add(document);
+		}
+		candidates.sort(Comparator.comparingLong(ImageDocument::getLastActive));
+
+		ArrayList<ImageDocument> selected = new ArrayList<ImageDocument>();
+		for (ImageDocument document : candidates) {
+			if (total <= this.maxBytes)
+				break;
+			total -= document.estimateBytes();
+			selected.add(document);
+		}
+		return selected;
+	}
+
+	/**
+	 * Gets the budget.
+	 *
+	 * @return - bytes all documents may hold together.
+	 */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+}
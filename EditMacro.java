@@ -0,0 +1,224 @@
+package assign11;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class represents a recorded sequence of filter steps that can be saved
+ * to a file and replayed on other images, e.g. to repeat an edit made on a
+ * preview on the full-resolution original.
+ *
+ * Steps are written as in FilterChain. Crops are recorded as "cropn" steps
+ * whose coordinates are fractions of the image size instead of pixel indexes,
+ * so the same region is cropped from an image of any resolution. A macro file
+ * holds one step per line; lines starting with # are comments.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class EditMacro {
+
+	public static final String NORMALIZED_CROP = "cropn";
+
+	private static final String HEADER = "# Image Processor macro";
+
+	private final ArrayList<String> steps;
+
+	/**
+	 * Creates a new, empty macro.
+	 */
+	public EditMacro() {
+		this.steps = new ArrayList<String>();
+	}
+
+	private EditMacro(List<String> steps) {
+		this.steps = new ArrayList<String>(steps);
+	}
+
+	/**
+	 * Records a filter step.
+	 *
+	 * @param step - the step, as accepted by FilterChain.
+	 * @throws IllegalArgumentException if the step is not a known filter.
+	 */
+	public synchronized void record(String step) {
+		this.steps.add(FilterChain.canonicalStep(step));
+	}
+
+	/**
+	 * Records a crop, converting its coordinates to fractions of the size of the
+	 * image it was applied to. Coordinates are as in Image.cropFilter: X indexes
+	 * rows and Y indexes columns.
+	 *
+	 * @param startX - the starting X-coordinate of the crop region.
+	 * @param startY - the starting Y-coordinate of the crop region.
+	 * @param endX   - the ending X-coordinate of the crop region.
+	 * @param endY   - the ending Y-coordinate of the crop region.
+	 * @param rows   - number of rows of the image before the crop.
+	 * @param cols   - number of columns of the image before the crop.
+	 */
+	public synchronized void recordCrop(int startX, int startY, int endX, int endY, int rows, int cols) {
+		this.steps.add(NORMALIZED_CROP + ":" + (double) startX / rows + "," + (double) startY / cols + ","
+				+ (double) (endX + 1) / rows + "," + (double) (endY + 1) / cols);
+	}
+
+	/**
+	 * Removes the steps after the given number of steps, e.g. to replace the step
+	 * recorded for a slider when the slider moves again.
+	 *
+	 * @param length - number of steps to keep.
+	 */
+	public synchronized void truncate(int length) {
+		while (this.steps.size() > length)
+			this.steps.remove(this.steps.size() - 1);
+	}
+
+	/**
+	 * Gets the number of recorded steps.
+	 *
+	 * @return - number of steps.
+	 */
+	public synchronized int size() {
+		return this.steps.size();
+	}
+
+	/**
+	 * Gets the recorded steps.
+	 *
+	 * @return - a copy of the steps.
+	 */
+	public synchronized List<String> getSteps() {
+		return new ArrayList<String>(this.steps);
+	}
+
+	/**
+	 * Applies every step of this macro to the given image.
+	 *
+	 * @param image - the image to edit.
+	 */
+	public void applyTo(Image image) {
+		for (String step : getSteps()) {
+			if (FilterChain.nameOf(step).equals(NORMALIZED_CROP)) {
+				String[] args = FilterChain.argsOf(step);
+				int rows = image.getNumberOfRows();
+				int cols = image.getNumberOfColumns();
+				int startX = Math.min(rows - 1, scale(args[0], rows));
+				int startY = Math.min(cols - 1, scale(args[1], cols));
+				image.cropFilter(startX, startY, Math.max(startX, scale(args[2], rows) - 1),
+						Math.max(startY, scale(args[3], cols) - 1));
+			} else {
+				FilterChain.applyStep(image, step);
+			}
+		}
+	}
+
+	/**
+	 * Creates an equivalent macro with fewer steps: steps that change nothing are
+	 * dropped, pairs of inversions or red/blue swaps and runs of four rotations
+	 * cancel out, and consecutive positive brightness steps are merged into one.
+	 * (Only positive amounts are merged: brightnessFilter clamps darkened pixels
+	 * in a way that makes two negative steps differ from their sum.)
+	 *
+	 * @return - the optimized macro.
+	 */
+	public EditMacro optimize() {
+		ArrayList<String> optimized = new ArrayList<String>();
+		for (String step : getSteps()) {
+			String name = FilterChain.nameOf(step);
+			String last = optimized.isEmpty() ? null : optimized.get(optimized.size() - 1);
+
+			if (!name.equals(NORMALIZED_CROP) && FilterChain.empty().append(step).size() == 0) {
+				continue;
+			} else if ((name.equals(FilterChain.INVERT) || name.equals(FilterChain.RED_BLUE_SWAP))
+					&& step.equals(last)) {
+				optimized.remove(optimized.size() - 1);
+			} else if (name.equals(FilterChain.ROTATE) && optimized.size() >= 3
+					&& optimized.subList(optimized.size() - 3, optimized.size()).stream()
+							.allMatch(FilterChain.ROTATE::equals)) {
+				for (int i = 0; i < 3; i++)
+					optimized.remove(optimized.size() - 1);
+			} else if (name.equals(FilterChain.BRIGHTNESS) && last != null
+					&& FilterChain.nameOf(last).equals(FilterChain.BRIGHTNESS)
+					&& brightnessOf(step) > 0 && brightnessOf(last) > 0) {
+				optimized.set(optimized.size() - 1,
+						FilterChain.step(FilterChain.BRIGHTNESS, brightnessOf(last) + brightnessOf(step)));
+			} else {
+				optimized.add(step);
+			}
+		}
+		return new EditMacro(optimized);
+	}
+
+	/**
+	 * Writes this macro to a file.
+	 *
+	 * @param file - the file to write.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void save(Path file) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write(HEADER);
+			out.newLine();
+			for (String step : getSteps()) {
+				out.write(step);
+				out.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Reads a macro from a file written by save.
+	 *
+	 * @param file - the file to read.
+	 * @return - the macro.
+	 * @throws IOException              if the file cannot be read.
+	 * @throws IllegalArgumentException if a line is not a known step.
+	 */
+	public static EditMacro load(Path file) throws IOException {
+		EditMacro macro = new EditMacro();
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				if (FilterChain.nameOf(line.toLowerCase(Locale.ROOT)).equals(NORMALIZED_CROP)) {
+					String[] args = FilterChain.argsOf(line);
+					if (args.length != 4)
+						throw new IllegalArgumentException("Filter step " + line + " expects 4 argument(s)");
+					for (String arg : args)
+						Double.parseDouble(arg);
+					macro.steps.add(line.toLowerCase(Locale.ROOT));
+				} else {
+					macro.record(line);
+				}
+			}
+		}
+		return macro;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.join(";", this.steps);
+	}
+
+	private static int brightnessOf(String step) {
+		return Integer.parseInt(FilterChain.argsOf(step)[0]);
+	}
+
+	/**
+	 * Converts a fraction of a size back to an index, rounding to the nearest so
+	 * that a crop replayed on an image of the recorded size covers exactly the
+	 * recorded region.
+	 */
+	private static int scale(String fraction, int size) {
+		return Math.max(0, Math.min(size, (int) Math.round(Double.parseDouble(fraction) * size)));
+	}
+}
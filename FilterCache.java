@@ -0,0 +1,172 @@
+package assign11;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents a bounded cache of filtered images. Each entry is keyed
+ * by the content hash of the unfiltered source image together with the canonical
+ * filter chain that produced it, so a chain that was seen before (or that shares
+ * a prefix with one) can resume from the stored result instead of being
+ * recomputed from scratch.
+ *
+ * Entries are evicted in least-recently-used order once the estimated size of
+ * the stored images exceeds the byte budget.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class FilterCache {
+
+	private final LinkedHashMap<String, Image> entries;
+	private long maxBytes;
+	private long currentBytes;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * Creates a new, empty cache.
+	 *
+	 * @param maxBytes - estimated number of bytes the stored images may occupy.
+	 */
+	public FilterCache(long maxBytes) {
+		this.entries = new LinkedHashMap<String, Image>(16, 0.75f, true);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Looks up the image produced by applying the given chain to the source with
+	 * the given content hash.
+	 *
+	 * @param sourceKey - content hash of the source image.
+	 * @param chain     - the canonical filter chain.
+	 * @return - the stored image, or null if it is not cached. The caller must not
+	 *         modify the returned image.
+	 */
+	public synchronized Image get(long sourceKey, FilterChain chain) {
+		Image image = this.entries.get(key(sourceKey, chain));
+		if (image == null)
+			this.missCount++;
+		else
+			this.hitCount++;
+		return image;
+	}
+
+	/**
+	 * Checks whether a result is cached without counting a hit or miss or changing
+	 * the eviction order.
+	 *
+	 * @param sourceKey - content hash of the source image.
+	 * @param chain     - the canonical filter chain.
+	 * @return - true if the result is cached.
+	 */
+	public synchronized boolean contains(long sourceKey, FilterChain chain) {
+		return this.entries.containsKey(key(sourceKey, chain));
+	}
+
+	/**
+	 * Stores the image produced by applying the given chain to the source with the
+	 * given content hash, evicting least-recently-used entries as needed. Images
+	 * larger than the whole budget are not stored.
+	 *
+	 * @param sourceKey - content hash of the source image.
+	 * @param chain     - the canonical filter chain.
+	 * @param image     - the result, which must not be modified afterwards.
+	 */
+	public synchronized void put(long sourceKey, FilterChain chain, Image image) {
+		long bytes = image.estimateBytes();
+		if (bytes > this.maxBytes)
+			return;
+
+		Image previous = this.entries.put(key(sourceKey, chain), image);
+		if (previous != null)
+			this.currentBytes -= previous.estimateBytes();
+		this.currentBytes += bytes;
+		trimTo(this.maxBytes);
+	}
+
+	/**
+	 * Removes every entry from the cache. The hit and miss counts are kept.
+	 */
+	public synchronized void clear() {
+		this.evictionCount += this.entries.size();
+		this.entries.clear();
+		this.currentBytes = 0;
+	}
+
+	/**
+	 * Changes the byte budget, evicting entries if the cache is now over budget.
+	 *
+	 * @param maxBytes - the new budget.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trimTo(maxBytes);
+	}
+
+	/**
+	 * Gets the number of lookups that found a result.
+	 *
+	 * @return - number of hits.
+	 */
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * Gets the number of lookups that found nothing.
+	 *
+	 * @return - number of misses.
+	 */
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Gets the number of entries removed to stay within budget or by clear.
+	 *
+	 * @return - number of evictions.
+	 */
+	public synchronized long getEvictionCount() {
+		return this.evictionCount;
+	}
+
+	/**
+	 * Gets the estimated number of bytes held by the cached images.
+	 *
+	 * @return - bytes in use.
+	 */
+	public synchronized long getCurrentBytes() {
+		return this.currentBytes;
+	}
+
+	/**
+	 * Gets the number of cached images.
+	 *
+	 * @return - number of entries.
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "FilterCache[entries=" + this.entries.size() + ", bytes=" + this.currentBytes + "/" + this.maxBytes
+				+ ", hits=" + this.hitCount + ", misses=" + this.missCount + ", evictions=" + this.evictionCount + "]";
+	}
+
+	private void trimTo(long budget) {
+		Iterator<Map.Entry<String, Image>> it = this.entries.entrySet().iterator();
+		while (this.currentBytes > budget && it.hasNext()) {
+			this.currentBytes -= it.next().getValue().estimateBytes();
+			it.remove();
+			this.evictionCount++;
+		}
+	}
+
+	private static String key(long sourceKey, FilterChain chain) {
+		return Long.toHexString(sourceKey) + "|" + chain;
+	}
+}
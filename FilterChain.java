@@ -0,0 +1,399 @@
+package assign11;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class represents an ordered sequence of filter steps that can be applied
+ * to an Image. Each step is written as a filter name, optionally followed by a
+ * colon and comma-separated arguments, e.g. "invert", "brightness:40" or
+ * "crop:0,0,99,99". A chain is written as its steps separated by semicolons.
+ *
+ * Chains are kept in canonical form: steps that undo each other (two inversions,
+ * two red/blue swaps, four clockwise rotations) are cancelled as they are
+ * appended, so that equivalent edit histories produce equal chains.
+ *
+ * Objects of this class are immutable.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class FilterChain {
+
+	public static final String RED_BLUE_SWAP = "redblueswap";
+	public static final String BLACK_AND_WHITE = "blackandwhite";
+	public static final String ROTATE = "rotate";
+	public static final String INVERT = "invert";
+	public static final String BRIGHTNESS = "brightness";
+	public static final String CROP = "crop";
+	public static final String ZOOM = "zoom";
+	public static final String CHANNEL = "channel";
+	public static final String LUMA = "luma";
+	public static final String SEPIA = "sepia";
+	public static final String SATURATION = "saturation";
+	public static final String HUE = "hue";
+	public static final String BLUR = "blur";
+
+	private static final FilterChain EMPTY = new FilterChain(new ArrayList<String>());
+
+	private final List<String> steps;
+
+	private FilterChain(List<String> steps) {
+		this.steps = steps;
+	}
+
+	/**
+	 * Gets the chain with no steps, i.e. the unfiltered source image.
+	 *
+	 * @return - the empty chain.
+	 */
+	public static FilterChain empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Parses a chain written as semicolon-separated steps, e.g.
+	 * "invert;brightness:40;rotate". Blank steps are ignored.
+	 *
+	 * @param spec - the chain to parse.
+	 * @return - the canonical chain.
+	 * @throws IllegalArgumentException if any step is not a known filter.
+	 */
+	public static FilterChain parse(String spec) {
+		FilterChain chain = EMPTY;
+		for (String step : spec.split("[;\\n]"))
+			if (!step.isBlank())
+				chain = chain.append(step);
+		return chain;
+	}
+
+	/**
+	 * Creates the chain obtained by appending the given step to this chain.
+	 *
+	 * @param step - the step to append.
+	 * @return - the canonical chain with the step appended.
+	 * @throws IllegalArgumentException if the step is not a known filter.
+	 */
+	public FilterChain append(String step) {
+		String canonical = canonicalStep(step);
+		String name = nameOf(canonical);
+		ArrayList<String> next = new ArrayList<String>(this.steps);
+
+		if (canonical.equals(ZOOM + ":0") || canonical.equals(SATURATION + ":100") || canonical.equals(HUE + ":0")
+				|| canonical.equals(BLUR + ":0")) {
+			// steps that leave the image unchanged
+			return this;
+		} else if ((name.equals(INVERT) || name.equals(RED_BLUE_SWAP)) && !next.isEmpty()
+				&& next.get(next.size() - 1).equals(name)) {
+			next.remove(next.size() - 1);
+		} else if (name.equals(ROTATE) && trailingCount(ROTATE) == 3) {
+			for (int i = 0; i < 3; i++)
+				next.remove(next.size() - 1);
+		} else {
+			next.add(canonical);
+		}
+		return new FilterChain(next);
+	}
+
+	/**
+	 * Creates the chain obtained by appending every step of the given chain to
+	 * this chain.
+	 *
+	 * @param other - the chain whose steps are appended.
+	 * @return - the canonical combined chain.
+	 */
+	public FilterChain appendAll(FilterChain other) {
+		FilterChain chain = this;
+		for (String step : other.steps)
+			chain = chain.append(step);
+		return chain;
+	}
+
+	/**
+	 * Gets the chain made of the first steps of this chain.
+	 *
+	 * @param length - number of steps to keep.
+	 * @return - the prefix of the given length.
+	 */
+	public FilterChain prefix(int length) {
+		return new FilterChain(new ArrayList<String>(this.steps.subList(0, length)));
+	}
+
+	/**
+	 * Gets the steps of this chain.
+	 *
+	 * @return - an unmodifiable list of canonical steps.
+	 */
+	public List<String> getSteps() {
+		return Collections.unmodifiableList(this.steps);
+	}
+
+	/**
+	 * Gets the number of steps in this chain.
+	 *
+	 * @return - number of steps.
+	 */
+	public int size() {
+		return this.steps.size();
+	}
+
+	/**
+	 * Applies every step of this chain to the given image.
+	 *
+	 * @param image - the image to filter.
+	 */
+	public void applyTo(Image image) {
+		image.applyFilterChain(this);
+	}
+
+	/**
+	 * Checks that every step of this chain can be applied to an image of the
+	 * given size, following the size through the steps that change it, so a
+	 * chain can be rejected before any filter runs. Steps that would fail for
+	 * any image of that size fail the check: crops outside the image, zooms that
+	 * leave no pixels or more than an array holds, channels other than RED,
+	 * GREEN and BLUE, and brightness amounts below -255.
+	 *
+	 * @param rows - number of rows of the image before the first step.
+	 * @param cols - number of columns of the image before the first step.
+	 * @throws IllegalArgumentException  if a step cannot be applied.
+	 * @throws IndexOutOfBoundsException if a crop region is outside the image.
+	 */
+	public void checkApplicable(int rows, int cols) {
+		for (String step : this.steps) {
+			String[] args = argsOf(step);
+			switch (nameOf(step)) {
+			case ROTATE:
+				int oldRows = rows;
+				rows = cols;
+				cols = oldRows;
+				break;
+			case BRIGHTNESS:
+				if (Integer.parseInt(args[0]) < -255)
+					throw new IllegalArgumentException("Filter step " + step + " expects an amount of at least -255");
+				break;
+			case CROP:
+				int startX = Integer.parseInt(args[0]), startY = Integer.parseInt(args[1]);
+				int endX = Integer.parseInt(args[2]), endY = Integer.parseInt(args[3]);
+				if (startX < 0 || startY < 0 || endX >= rows || endY >= cols || endX < startX || endY < startY)
+					throw new IndexOutOfBoundsException("Crop region " + startX + "," + startY + " to " + endX + ","
+							+ endY + " is outside the " + rows + "x" + cols + " image");
+				rows = endX - startX + 1;
+				cols = endY - startY + 1;
+				break;
+			case ZOOM:
+				// the sizes computed by Image.customFeatureZoomIn
+				double amount = Double.parseDouble(args[0]);
+				double factor = amount + 0.00001;
+				if (factor > 1) {
+					rows = (int) (rows * factor);
+					cols = (int) (cols * factor);
+				} else if (factor < 0) {
+					rows = (int) (rows / (amount * amount));
+					cols = (int) (cols / (amount * amount));
+				}
+				if (rows == 0 || cols == 0 || (long) rows * cols > Integer.MAX_VALUE - 8)
+					throw new IllegalArgumentException("Filter step " + step + " would make the image " + rows + "x"
+							+ cols);
+				break;
+			case CHANNEL:
+				int channel = Integer.parseInt(args[0]);
+				if (channel < Image.RED || channel > Image.BLUE)
+					throw new IllegalArgumentException("Filter step " + step + " expects channel 0, 1 or 2");
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Applies a single canonical step to the given image by calling the matching
+	 * filter method.
+	 *
+	 * @param image - the image to filter.
+	 * @param step  - the canonical step.
+	 */
+	static void applyStep(Image image, String step) {
+		String[] args = argsOf(step);
+		switch (nameOf(step)) {
+		case RED_BLUE_SWAP:
+			image.redBlueSwapFilter();
+			break;
+		case BLACK_AND_WHITE:
+			image.blackAndWhiteFilter();
+			break;
+		case ROTATE:
+			image.rotateClockwiseFilter();
+			break;
+		case INVERT:
+			image.customFilter();
+			break;
+		case BRIGHTNESS:
+			image.brightnessFilter(Integer.parseInt(args[0]));
+			break;
+		case CROP:
+			image.cropFilter(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+					Integer.parseInt(args[3]));
+			break;
+		case ZOOM:
+			image.customFeatureZoomIn(Double.parseDouble(args[0]));
+			break;
+		case CHANNEL:
+			image.colorChannelFilter(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+			break;
+		case LUMA:
+			image.lumaGrayscaleFilter(
+					args[0].equals("709") ? ColorConversion.Luma.REC_709 : ColorConversion.Luma.REC_601);
+			break;
+		case SEPIA:
+			image.sepiaFilter();
+			break;
+		case SATURATION:
+			image.saturationFilter(Integer.parseInt(args[0]));
+			break;
+		case HUE:
+			image.hueShiftFilter(Integer.parseInt(args[0]));
+			break;
+		case BLUR:
+			image.boxBlurFilter(Integer.parseInt(args[0]));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown filter step: " + step);
+		}
+	}
+
+	/**
+	 * Builds the step string for the given filter name and arguments.
+	 *
+	 * @param name - the filter name.
+	 * @param args - the filter arguments.
+	 * @return - the canonical step.
+	 */
+	static String step(String name, Object... args) {
+		StringBuilder sb = new StringBuilder(name);
+		for (int i = 0; i < args.length; i++)
+			sb.append(i == 0 ? ':' : ',').append(args[i]);
+		return canonicalStep(sb.toString());
+	}
+
+	/**
+	 * Gets the filter name of a step.
+	 *
+	 * @param step - the step.
+	 * @return - the part of the step before the colon.
+	 */
+	static String nameOf(String step) {
+		int colon = step.indexOf(':');
+		return colon < 0 ? step : step.substring(0, colon);
+	}
+
+	/**
+	 * Gets the arguments of a step.
+	 *
+	 * @param step - the step.
+	 * @return - the comma-separated arguments after the colon, or an empty array.
+	 */
+	static String[] argsOf(String step) {
+		int colon = step.indexOf(':');
+		return colon < 0 ? new String[0] : step.substring(colon + 1).split(",");
+	}
+
+	/**
+	 * Converts a step to canonical form: lower-case name, no whitespace, and
+	 * arguments written the same way regardless of how they were typed.
+	 *
+	 * @param step - the step.
+	 * @return - the canonical step.
+	 * @throws IllegalArgumentException if the step is not a known filter.
+	 */
+	static String canonicalStep(String step) {
+		String trimmed = step.replaceAll("\\s", "").toLowerCase(Locale.ROOT);
+		String name = nameOf(trimmed);
+		String[] args = argsOf(trimmed);
+		try {
+			switch (name) {
+			case RED_BLUE_SWAP:
+			case BLACK_AND_WHITE:
+			case ROTATE:
+			case INVERT:
+			case SEPIA:
+				requireArgs(step, args, 0);
+				return name;
+			case BRIGHTNESS:
+				requireArgs(step, args, 1);
+				return name + ":" + Integer.parseInt(args[0]);
+			case CROP:
+				requireArgs(step, args, 4);
+				return name + ":" + Integer.parseInt(args[0]) + "," + Integer.parseInt(args[1]) + ","
+						+ Integer.parseInt(args[2]) + "," + Integer.parseInt(args[3]);
+			case ZOOM:
+				requireArgs(step, args, 1);
+				double factor = Double.parseDouble(args[0]);
+				if (factor >= 0 && factor + 0.00001 <= 1)
+					return name + ":0";
+				return name + ":" + (factor == Math.rint(factor) ? Long.toString((long) factor) : Double.toString(factor));
+			case LUMA:
+				requireArgs(step, args, 1);
+				if (!args[0].equals("601") && !args[0].equals("709"))
+					throw new IllegalArgumentException("Filter step " + step + " expects 601 or 709");
+				return name + ":" + args[0];
+			case SATURATION:
+				requireArgs(step, args, 1);
+				int percent = Integer.parseInt(args[0]);
+				if (percent < 0 || percent > ColorConversion.MAX_SATURATION_PERCENT)
+					throw new IllegalArgumentException("Filter step " + step + " expects a percentage from 0 to "
+							+ ColorConversion.MAX_SATURATION_PERCENT);
+				return name + ":" + percent;
+			case HUE:
+				requireArgs(step, args, 1);
+				return name + ":" + Math.floorMod(Integer.parseInt(args[0]), 360);
+			case BLUR:
+				requireArgs(step, args, 1);
+				if (Integer.parseInt(args[0]) < 0)
+					throw new IllegalArgumentException("Filter step " + step + " expects a radius of at least 0");
+				return name + ":" + Integer.parseInt(args[0]);
+			case CHANNEL:
+				requireArgs(step, args, 2);
+				return name + ":" + Integer.parseInt(args[0]) + "," + Integer.parseInt(args[1]);
+			default:
+				throw new IllegalArgumentException("Unknown filter step: " + step);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid argument in filter step: " + step);
+		}
+	}
+
+	private static void requireArgs(String step, String[] args, int count) {
+		if (args.length != count)
+			throw new IllegalArgumentException("Filter step " + step + " expects " + count + " argument(s)");
+	}
+
+	private int trailingCount(String name) {
+		int count = 0;
+		for (int i = this.steps.size() - 1; i >= 0 && this.steps.get(i).equals(name); i--)
+			count++;
+		return count;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof FilterChain && ((FilterChain) other).steps.equals(this.steps);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.steps.hashCode();
+	}
+
+	/**
+	 * Gets the chain written as semicolon-separated steps, the same form accepted
+	 * by parse.
+	 */
+	@Override
+	public String toString() {
+		return String.join(";", this.steps);
+	}
+}
@@ -0,0 +1,86 @@
+package assign11;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class represents a pool of worker threads shared by every open document
+ * for running filters in the background.
+ *
+ * Jobs are queued per owner (normally an ImageDocument). The jobs of one owner
+ * run one at a time and in the order they were submitted, while owners take
+ * turns in round-robin order, so a long run of filters on one image does not
+ * keep the workers from another image's interactive work.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class FilterExecutor {
+
+	private final ExecutorService workers;
+	private final HashMap<Object, ArrayDeque<Runnable>> queues;
+
+	/**
+	 * Creates a new executor with the given number of worker threads.
+	 *
+	 * @param threadCount - number of worker threads.
+	 */
+	public FilterExecutor(int threadCount) {
+		this.workers = Executors.newFixedThreadPool(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, "filter-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.queues = new HashMap<Object, ArrayDeque<Runnable>>();
+	}
+
+	/**
+	 * Queues a job for the given owner. The job runs after every job previously
+	 * submitted for the same owner has finished.
+	 *
+	 * @param owner - the document (or other object) the job works on.
+	 * @param job   - the job to run on a worker thread.
+	 */
+	public synchronized void submit(Object owner, Runnable job) {
+		ArrayDeque<Runnable> queue = this.queues.get(owner);
+		if (queue == null) {
+			queue = new ArrayDeque<Runnable>();
+			this.queues.put(owner, queue);
+			this.workers.execute(() -> runNext(owner));
+		}
+		queue.add(job);
+	}
+
+	/**
+	 * Stops the worker threads once the jobs already queued have run.
+	 */
+	public void shutdown() {
+		this.workers.shutdown();
+	}
+
+	/**
+	 * Runs the next job of the given owner, then puts the owner at the back of the
+	 * line if it has more jobs waiting.
+	 */
+	private void runNext(Object owner) {
+		Runnable job;
+		synchronized (this) {
+			job = this.queues.get(owner).poll();
+		}
+
+		try {
+			job.run();
+		} catch (RuntimeException e) {
+			System.out.println("Filter job failed: " + e);
+		} finally {
+			synchronized (this) {
+				if (this.queues.get(owner).isEmpty())
+					this.queues.remove(owner);
+				else
+					this.workers.execute(() -> runNext(owner));
+			}
+		}
+	}
+}
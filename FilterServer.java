@@ -0,0 +1,247 @@
+package assign11;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class represents a local HTTP service that runs filter chains on
+ * uploaded images, so other programs on the same machine can use the filters
+ * without starting a new JVM for every image.
+ *
+ * POST /filter?chain=invert;brightness:20&format=png with the image file as the
+ * request body returns the filtered image in the given format (png by default,
+ * or jpg). GET /metrics returns request counts and latency percentiles as
+ * plain text.
+ *
+ * Each request is handled on its own virtual thread when the JVM supports them
+ * (Java 21 and later) and on a pooled platform thread otherwise. A bounded
+ * number of requests are admitted at a time, and requests beyond that are
+ * rejected right away with 429 Too Many Requests. An admitted request reads
+ * and decodes its upload first, so a slow upload does not hold up the others;
+ * then only as many requests as there are processors filter at once, and the
+ * rest wait their turn. An upload that cannot be decoded is answered with 415
+ * Unsupported Media Type, and a chain that cannot be applied to the decoded
+ * image, e.g. a crop outside it, with 400 Bad Request, both before any filter
+ * runs. A filter that fails anyway is answered with 500 Internal Server Error.
+ * The latency percentiles cover the requests answered with the filtered image.
+ * Requests do not use the shared result cache, since each image is filtered
+ * once.
+ *
+ * The service only listens on the loopback address.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class FilterServer {
+
+	private final HttpServer server;
+	private final ExecutorService requestExecutor;
+	private final Semaphore admission;
+	private final int maxAdmitted;
+	private final Semaphore filterSlots;
+	private final LatencyRecorder latencies;
+	private final AtomicLong rejectedCount;
+	private final AtomicLong failedCount;
+
+	/**
+	 * Creates a new server listening on the given port of the loopback address.
+	 * The server does not accept requests until start is called.
+	 *
+	 * @param port               - the port to listen on.
+	 * @param maxAdmitted        - number of requests admitted at once, running or
+	 *                           waiting for a filter slot.
+	 * @param maxFilteringAtOnce - number of requests filtered at once.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public FilterServer(int port, int maxAdmitted, int maxFilteringAtOnce) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.requestExecutor = newRequestExecutor();
+		this.admission = new Semaphore(maxAdmitted);
+		this.maxAdmitted = maxAdmitted;
+		this.filterSlots = new Semaphore(maxFilteringAtOnce, true);
+		this.latencies = new LatencyRecorder(4096);
+		this.rejectedCount = new AtomicLong();
+		this.failedCount = new AtomicLong();
+
+		this.server.setExecutor(this.requestExecutor);
+		this.server.createContext("/filter", this::handleFilter);
+		this.server.createContext("/metrics", this::handleMetrics);
+	}
+
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start() {
+		this.server.start();
+		System.out.println("Filter server listening on http://" + InetAddress.getLoopbackAddress().getHostAddress()
+				+ ":" + this.server.getAddress().getPort() + "/filter");
+	}
+
+	/**
+	 * Stops accepting requests and waits up to the given time for requests in
+	 * progress to finish.
+	 *
+	 * @param delaySeconds - the longest time to wait.
+	 */
+	public void stop(int delaySeconds) {
+		this.server.stop(delaySeconds);
+		this.requestExecutor.shutdown();
+	}
+
+	/**
+	 * Handles POST /filter: decodes the uploaded image, applies the chain given in
+	 * the query and streams back the encoded result.
+	 */
+	private void handleFilter(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				sendText(exchange, 405, "Use POST with the image as the request body.");
+				return;
+			}
+			if (!this.admission.tryAcquire()) {
+				this.rejectedCount.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendText(exchange, 429, "Too many requests; try again later.");
+				return;
+			}
+
+			try {
+				HashMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+				String format = query.getOrDefault("format", "png");
+				if (!format.equals("png") && !format.equals("jpg")) {
+					sendText(exchange, 400, "format must be png or jpg");
+					return;
+				}
+
+				FilterChain chain;
+				try {
+					chain = FilterChain.parse(query.getOrDefault("chain", ""));
+				} catch (IllegalArgumentException e) {
+					sendText(exchange, 400, "Invalid filter chain: " + e.getMessage());
+					return;
+				}
+				BufferedImage input;
+				try {
+					input = ImageIO.read(exchange.getRequestBody());
+				} catch (IIOException | RuntimeException e) {
+					// decoders report corrupt data either way
+					input = null;
+				}
+				if (input == null) {
+					sendText(exchange, 415, "The request body is not an image in a supported format.");
+					return;
+				}
+				try {
+					chain.checkApplicable(input.getHeight(), input.getWidth());
+				} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+					sendText(exchange, 400, "Invalid filter chain: " + e.getMessage());
+					return;
+				}
+
+				BufferedImage result;
+				this.filterSlots.acquireUninterruptibly();
+				try {
+					Image image = new Image(input);
+					image.setResultCaching(false);
+					image.applyFilterChain(chain);
+					result = image.toBufferedImage();
+				} catch (RuntimeException | OutOfMemoryError e) {
+					this.failedCount.incrementAndGet();
+					sendText(exchange, 500, "The filters failed: " + e);
+					return;
+				} finally {
+					this.filterSlots.release();
+				}
+
+				exchange.getResponseHeaders().set("Content-Type", "image/" + (format.equals("png") ? "png" : "jpeg"));
+				exchange.sendResponseHeaders(200, 0);
+				try (OutputStream body = exchange.getResponseBody()) {
+					ImageIO.write(result, format, body);
+				}
+				this.latencies.record(System.nanoTime() - start);
+			} finally {
+				this.admission.release();
+			}
+		} catch (IOException | RuntimeException e) {
+			// the status may have been sent already, so the exchange is only closed
+			this.failedCount.incrementAndGet();
+			throw e;
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Handles GET /metrics: reports request counts, latency percentiles and the
+	 * state of the filter result cache.
+	 */
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		long[] latency = this.latencies.percentiles(50, 90, 99, 100);
+		StringBuilder sb = new StringBuilder();
+		sb.append("requests_succeeded ").append(this.latencies.getTotalCount()).append('\n');
+		sb.append("requests_rejected ").append(this.rejectedCount.get()).append('\n');
+		sb.append("requests_failed ").append(this.failedCount.get()).append('\n');
+		sb.append("requests_admitted_now ")
+				.append(this.maxAdmitted - this.admission.availablePermits()).append('\n');
+		sb.append("success_latency_ms_p50 ").append(latency[0] / 1_000_000.0).append('\n');
+		sb.append("success_latency_ms_p90 ").append(latency[1] / 1_000_000.0).append('\n');
+		sb.append("success_latency_ms_p99 ").append(latency[2] / 1_000_000.0).append('\n');
+		sb.append("success_latency_ms_max ").append(latency[3] / 1_000_000.0).append('\n');
+		sb.append("filter_cache ").append(Image.getResultCache()).append('\n');
+		sendText(exchange, 200, sb.toString());
+		exchange.close();
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(bytes);
+		}
+	}
+
+	private static HashMap<String, String> parseQuery(String rawQuery) {
+		HashMap<String, String> query = new HashMap<String, String>();
+		if (rawQuery == null)
+			return query;
+		for (String pair : rawQuery.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0)
+				query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+						URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per request if the JVM
+	 * has virtual threads, or a pool of platform threads otherwise. Virtual
+	 * threads are looked up by reflection so the program still builds and runs
+	 * on Java 17.
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
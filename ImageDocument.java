@@ -0,0 +1,317 @@
+package assign11;
+
+import java.awt.BorderLayout;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.imageio.ImageIO;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.SwingConstants;
+
+/**
+ * This class represents one image opened in the Image Processor, shown in its
+ * own tab.
+ *
+ * To keep the total memory of all open documents within budget, an inactive
+ * document can be spilled: its pixels are written to a compressed temporary
+ * file and dropped from memory, then read back when the document is needed
+ * again.
+ *
+ * The load, spill and restore methods, and getImage, which restores a spilled
+ * image first, do file I/O and are meant to run as jobs on the shared
+ * FilterExecutor. Spilling and restoring exclude each other, so a spill file
+ * is never read twice or read while it is written. The remaining methods are
+ * for the event dispatch thread, which gets the image with getLoadedImage.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class ImageDocument {
+
+	private final File file;
+	private final JPanel view;
+	private final EditMacro macro;
+	private volatile Image image;
+	private volatile File spillFile;
+	private volatile Image sliderBase;
+	private ImagePanel imagePanel;
+	private long lastActive;
+	private int pendingJobs;
+
+	/**
+	 * Creates a new document for the given image file. The file is not read until
+	 * load is called.
+	 *
+	 * @param file - the image file.
+	 */
+	public ImageDocument(File file) {
+		this.file = file;
+		this.view = new JPanel(new BorderLayout());
+		this.macro = new EditMacro();
+		this.view.add(new JLabel("Loading " + file.getName() + "...", SwingConstants.CENTER), BorderLayout.CENTER);
+		markActive();
+	}
+
+	/**
+	 * Reads the image file. The decoded image is copied straight into planar
+	 * layout, which takes much less memory than an array of Pixel objects, so no
+	 * Pixel array is built on the way.
+	 *
+	 * @throws UncheckedIOException if the file cannot be read or decoded.
+	 */
+	public void load() {
+		BufferedImage decoded;
+		try {
+			decoded = ImageIO.read(this.file);
+		} catch (IOException e) {
+			throw new UncheckedIOException("The image " + getName() + " cannot be read", e);
+		}
+		if (decoded == null)
+			throw new UncheckedIOException("The image " + getName() + " is not in a known format",
+					new IOException("no ImageIO reader accepts " + this.file));
+		this.image = new Image(decoded);
+	}
+
+	/**
+	 * Gets the macro recording the filters applied to this document.
+	 *
+	 * @return - the macro.
+	 */
+	public EditMacro getMacro() {
+		return this.macro;
+	}
+
+	/**
+	 * Gets the image of this document, reading it back from disk first if it was
+	 * spilled. Meant for jobs on the FilterExecutor.
+	 *
+	 * @return - the image.
+	 */
+	public synchronized Image getImage() {
+		restore();
+		return this.image;
+	}
+
+	/**
+	 * Gets the image of this document if it is in memory, without reading a
+	 * spilled image back, e.g. for the event dispatch thread.
+	 *
+	 * @return - the image, or null if it is spilled or not loaded yet.
+	 */
+	public Image getLoadedImage() {
+		return this.image;
+	}
+
+	/**
+	 * Keeps a copy of the image as it is now, for a slider to apply each of its
+	 * values to. The copy is held by this document, so unlike a result in the
+	 * shared cache it cannot be evicted while the slider is shown.
+	 */
+	public void pinSliderBase() {
+		this.sliderBase = getImage().copy();
+	}
+
+	/**
+	 * Gets the copy kept by pinSliderBase.
+	 *
+	 * @return - the copy, or null if none is kept.
+	 */
+	public Image getSliderBase() {
+		return this.sliderBase;
+	}
+
+	/**
+	 * Drops the copy kept by pinSliderBase.
+	 */
+	public void unpinSliderBase() {
+		this.sliderBase = null;
+	}
+
+	/**
+	 * Writes the pixels of the image, one byte per channel, to a compressed
+	 * temporary file and drops the image from memory. Does nothing if the
+	 * document is not loaded.
+	 */
+	public synchronized void spill() {
+		Image current = this.image;
+		if (current == null)
+			return;
+
+		try {
+			File spill = File.createTempFile("image-document", ".gz");
+			spill.deleteOnExit();
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(spill))))) {
+				current.writeTo(out);
+			}
+			this.spillFile = spill;
+			this.image = null;
+		} catch (IOException e) {
+			System.out.println("The image " + getName() + " cannot be spilled to disk: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a spilled image back into memory, straight into planar layout and
+	 * with the filter chain it had when it was spilled. Does nothing if the
+	 * document is not spilled.
+	 */
+	public synchronized void restore() {
+		File spill = this.spillFile;
+		if (spill == null)
+			return;
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(spill))))) {
+			this.image = Image.readFrom(in);
+		} catch (IOException e) {
+			throw new UncheckedIOException("The image " + getName() + " cannot be restored from disk", e);
+		}
+		this.spillFile = null;
+		spill.delete();
+	}
+
+	/**
+	 * Deletes the temporary file of a spilled document.
+	 */
+	public synchronized void close() {
+		File spill = this.spillFile;
+		if (spill != null)
+			spill.delete();
+	}
+
+	/**
+	 * Determines whether the image is currently held in memory.
+	 *
+	 * @return - true if the image is loaded and not spilled.
+	 */
+	public boolean isLoaded() {
+		return this.image != null;
+	}
+
+	/**
+	 * Determines whether the image is currently spilled to disk.
+	 *
+	 * @return - true if the image is spilled.
+	 */
+	public boolean isSpilled() {
+		return this.spillFile != null;
+	}
+
+	/**
+	 * Estimates the memory held by this document: its image, the copy kept for a
+	 * slider and the tiles rendered for the screen.
+	 *
+	 * @return - estimated size in bytes, or 0 if the image is not in memory.
+	 */
+	public long estimateBytes() {
+		Image current = this.image;
+		if (current == null)
+			return 0;
+		ImagePanel panel = this.imagePanel;
+		Image base = this.sliderBase;
+		return current.estimateBytes() + (base == null ? 0 : base.estimateBytes())
+				+ (panel == null ? 0 : panel.estimateTileBytes());
+	}
+
+	/**
+	 * Gets the name shown on the tab of this document.
+	 *
+	 * @return - the file name.
+	 */
+	public String getName() {
+		return this.file.getName();
+	}
+
+	/**
+	 * Gets the component shown in the tab of this document.
+	 *
+	 * @return - the tab contents.
+	 */
+	public JPanel getView() {
+		return this.view;
+	}
+
+	/**
+	 * Gets the panel currently displaying the image.
+	 *
+	 * @return - the image panel, or null if the image is not displayed.
+	 */
+	public ImagePanel getImagePanel() {
+		return this.imagePanel;
+	}
+
+	/**
+	 * Rebuilds the tab contents from the current image, or shows a placeholder if
+	 * the image is spilled.
+	 *
+	 * @param frame - the frame that owns the tab.
+	 */
+	public void refreshView(ImageProcessorFrame frame) {
+		this.view.removeAll();
+		if (isLoaded()) {
+			this.imagePanel = new ImagePanel(this.image, frame);
+			JScrollPane scroller = new JScrollPane(this.imagePanel);
+			scroller.getVerticalScrollBar().setUnitIncrement(ImagePanel.TILE_SIZE / 8);
+			scroller.getHorizontalScrollBar().setUnitIncrement(ImagePanel.TILE_SIZE / 8);
+			this.view.add(scroller, BorderLayout.CENTER);
+		} else {
+			this.imagePanel = null;
+			this.view.add(new JLabel(getName() + " is stored on disk to save memory.", SwingConstants.CENTER),
+					BorderLayout.CENTER);
+		}
+		this.view.revalidate();
+		this.view.repaint();
+	}
+
+	/**
+	 * Records that this document was just shown or edited.
+	 */
+	public void markActive() {
+		this.lastActive = System.nanoTime();
+	}
+
+	/**
+	 * Gets the time this document was last shown or edited.
+	 *
+	 * @return - a System.nanoTime value.
+	 */
+	public long getLastActive() {
+		return this.lastActive;
+	}
+
+	/**
+	 * Records that a job for this document was submitted to the executor.
+	 */
+	public void jobSubmitted() {
+		this.pendingJobs++;
+	}
+
+	/**
+	 * Records that a job for this document finished.
+	 */
+	public void jobFinished() {
+		this.pendingJobs--;
+	}
+
+	/**
+	 * Determines whether jobs for this document are queued or running.
+	 *
+	 * @return - true if the document has unfinished jobs.
+	 */
+	public boolean isBusy() {
+		return this.pendingJobs > 0;
+	}
+}
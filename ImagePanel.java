@@ -4,27 +4,48 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.util.HashSet;
 
 import javax.swing.JPanel;
-import meeting21.Shape;
+import javax.swing.SwingUtilities;
 import meeting21.Rectangle;
 
 /**
  * This class represents a GUI component for displaying an image.
  *
+ * The panel is as large as the image and is meant to be shown in a JScrollPane.
+ * The image is split into square tiles, and only the tiles in the area being
+ * painted are drawn. Tiles are rendered from the image in the background and
+ * kept in a TileCache sized to a few screenfuls, so scrolling around an image
+ * of any size takes the same memory and time. A tile that is not rendered yet
+ * is left blank until it is ready. Tiles are read from the last version of the
+ * image published by a filter, so they keep rendering while the next filter
+ * runs. The first tile drawn on screen is reported to Startup as the first
+ * image shown. The crop selection is drawn on a separate
+ * SelectionOverlay, so dragging the selection only repaints the area it
+ * covers.
+ *
  * @author Prof. Martin and Khang Hoang Nguyen
  * @version Dec 07 2023
  */
 public class ImagePanel extends JPanel implements MouseListener, MouseMotionListener {
 
-	private BufferedImage bufferedImg;
-	private ArrayList<Shape> shapes;
+	/** Width and height of a tile in pixels. */
+	public static final int TILE_SIZE = 256;
+
+	private static final int MIN_CACHED_TILES = 64;
+
+	private final int rowCount;
+	private final int colCount;
+	private final TileCache tiles;
+	private final HashSet<Long> pendingTiles;
+	private volatile java.awt.Rectangle wantedTiles;
+	private SelectionOverlay overlay;
+	private boolean isDragging;
 	private Color color;
-	private Rectangle selectedRectangle;
 	private ImageProcessorFrame frame;
 	private Image img;
 
@@ -34,66 +55,157 @@ public class ImagePanel extends JPanel implements MouseListener, MouseMotionList
 	 * @param img - the given image
 	 */
 	public ImagePanel(Image img, ImageProcessorFrame frame) {
-		int rowCount = img.getNumberOfRows();
-		int colCount = img.getNumberOfColumns();
-
-		this.bufferedImg = new BufferedImage(colCount, rowCount, BufferedImage.TYPE_INT_RGB);
-
-		for (int i = 0; i < rowCount; i++)
-			for (int j = 0; j < colCount; j++)
-				this.bufferedImg.setRGB(j, i, img.getPixel(i, j).getPackedRGB());
+		this.rowCount = img.getNumberOfRows();
+		this.colCount = img.getNumberOfColumns();
+		this.tiles = new TileCache(MIN_CACHED_TILES);
+		this.pendingTiles = new HashSet<Long>();
 
 		this.setPreferredSize(new Dimension(colCount, rowCount));
 
 		this.frame = frame;
 		this.img = img;
-		this.shapes = new ArrayList<Shape>();
 		this.color = new Color(105, 105, 105, 125);
+		this.overlay = new SelectionOverlay(this.color);
+		this.setLayout(null);
+		this.add(this.overlay);
 		this.addMouseListener(this);
 		this.addMouseMotionListener(this);
 	}
 
+	/**
+	 * Keeps the selection overlay the same size as this panel.
+	 */
+	@Override
+	public void doLayout() {
+		this.overlay.setBounds(0, 0, getWidth(), getHeight());
+	}
+
 	/**
 	 * This method is called by the system when a component needs to be painted.
 	 * Which can be at one of three times: --when the component first appears --when
 	 * the size of the component changes (including resizing by the user) --when
 	 * repaint() is called
 	 *
+	 * Only the image is painted here; the selection is painted by the overlay on
+	 * top of it. Only the tiles that overlap the area being painted are drawn;
+	 * the ones not rendered yet are requested from the background.
+	 *
 	 * Partially overrides the paintComponent method of JPanel.
 	 *
 	 * @param g -- graphics context onto which we can draw
 	 */
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
-		g.drawImage(this.bufferedImg, 0, 0, this);
+		if (this.rowCount == 0 || this.colCount == 0)
+			return;
+
+		// tiles in view, plus a margin of one tile, are worth rendering
+		java.awt.Rectangle visible = getVisibleRect();
+		int firstVisibleRow = Math.max(0, visible.y / TILE_SIZE - 1);
+		int firstVisibleCol = Math.max(0, visible.x / TILE_SIZE - 1);
+		int lastVisibleRow = Math.min(tileRows() - 1, (visible.y + visible.height) / TILE_SIZE + 1);
+		int lastVisibleCol = Math.min(tileCols() - 1, (visible.x + visible.width) / TILE_SIZE + 1);
+		this.wantedTiles = new java.awt.Rectangle(firstVisibleCol, firstVisibleRow,
+				lastVisibleCol - firstVisibleCol + 1, lastVisibleRow - firstVisibleRow + 1);
+		this.tiles.setCapacity(Math.max(MIN_CACHED_TILES, 2 * this.wantedTiles.width * this.wantedTiles.height));
+
+		java.awt.Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new java.awt.Rectangle(0, 0, this.colCount, this.rowCount);
+		int firstRow = Math.max(0, clip.y / TILE_SIZE);
+		int firstCol = Math.max(0, clip.x / TILE_SIZE);
+		int lastRow = Math.min(tileRows() - 1, (clip.y + clip.height - 1) / TILE_SIZE);
+		int lastCol = Math.min(tileCols() - 1, (clip.x + clip.width - 1) / TILE_SIZE);
+
+		boolean onScreen = getGraphicsConfiguration() != null;
+		for (int tileRow = firstRow; tileRow <= lastRow; tileRow++)
+			for (int tileCol = firstCol; tileCol <= lastCol; tileCol++) {
+				BufferedImage tile = this.tiles.get(tileRow, tileCol);
+				if (tile == null && !onScreen) {
+					// not on screen, e.g. when painting into an image, so there is no one to wait for the tile
+					tile = renderTile(tileRow, tileCol);
+				}
+				if (tile != null) {
+					g.drawImage(tile, tileCol * TILE_SIZE, tileRow * TILE_SIZE, this);
+					if (onScreen)
+						Startup.reportFirstImage();
+				} else
+					requestTile(tileRow, tileCol);
+			}
+	}
 
-		if (selectedRectangle != null) {
+	/**
+	 * Estimates the memory held by the rendered tiles of this panel.
+	 *
+	 * @return - estimated size in bytes.
+	 */
+	public long estimateTileBytes() {
+		return this.tiles.estimateBytes();
+	}
 
-			g.setColor(this.color);
-			g.fillRect(selectedRectangle.getPositionX(), selectedRectangle.getPositionY(), selectedRectangle.getSizeX(),
-					selectedRectangle.getSizeY());
-			for (Shape o : this.shapes)
+	/**
+	 * Renders the given tile in the background, unless it is already being
+	 * rendered, and repaints its area once it is ready. The tile is skipped if it
+	 * has been scrolled out of view before its turn comes.
+	 */
+	private void requestTile(int tileRow, int tileCol) {
+		Long key = ((long) tileRow << 32) | tileCol;
+		if (!this.pendingTiles.add(key))
+			return;
+
+		this.frame.runInBackground(this.img, () -> {
+			java.awt.Rectangle wanted = this.wantedTiles;
+			BufferedImage tile = wanted != null && wanted.contains(tileCol, tileRow) ? renderTile(tileRow, tileCol)
+					: null;
+			SwingUtilities.invokeLater(() -> {
+				this.pendingTiles.remove(key);
+				if (tile != null) {
+					this.tiles.put(tileRow, tileCol, tile);
+					repaint(tileCol * TILE_SIZE, tileRow * TILE_SIZE, tile.getWidth(), tile.getHeight());
+				}
+			});
+		});
+	}
 
-				o.paintMe(g);
-		}
+	/**
+	 * Copies one tile of the image into a new BufferedImage.
+	 *
+	 * @return - the tile, or null if the image has changed size since this panel
+	 *         was created (a new panel will replace this one).
+	 */
+	private BufferedImage renderTile(int tileRow, int tileCol) {
+		int top = tileRow * TILE_SIZE;
+		int left = tileCol * TILE_SIZE;
+		int height = Math.min(TILE_SIZE, this.rowCount - top);
+		int width = Math.min(TILE_SIZE, this.colCount - left);
+		BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		return this.img.readRegion(this.rowCount, this.colCount, top, left, tile) ? tile : null;
+	}
+
+	private int tileRows() {
+		return (this.rowCount + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	private int tileCols() {
+		return (this.colCount + TILE_SIZE - 1) / TILE_SIZE;
 	}
 
 	private static final long serialVersionUID = 1L;
 
 	/**
 	 * When a mouse is dragged. A rectangle will appear indicate the dimension the
-	 * user wanted to crop.
+	 * user wanted to crop. The filter menu items are disabled once, when the drag
+	 * starts.
 	 */
 	@Override
 	public void mouseDragged(MouseEvent e) {
-		// TODO Auto-generated method stub
-
-		if (this.selectedRectangle != null) {
+		if (this.overlay.getSelectedRectangle() != null) {
 
-			this.selectedRectangle.setSize(e.getX() - selectedRectangle.getPositionX(),
-					e.getY() - selectedRectangle.getPositionY());
-			repaint();
-			frame.disableFilterMenuItems();
+			this.overlay.resizeSelection(e.getX(), e.getY());
+			if (!this.isDragging) {
+				this.isDragging = true;
+				frame.disableFilterMenuItems();
+			}
 
 		}
 
@@ -101,28 +213,29 @@ public class ImagePanel extends JPanel implements MouseListener, MouseMotionList
 
 	/**
 	 * Apply a crop filter to the image based on the selected rectangle coordinates.
+	 * The crop runs in the background; the frame shows the cropped image in a new
+	 * panel once it is done.
 	 */
 	@Override
 	public void mouseReleased(MouseEvent e) {
-		// TODO Auto-generated method stub
-		if (this.selectedRectangle != null) {
+		Rectangle selectedRectangle = this.overlay.getSelectedRectangle();
+		if (selectedRectangle != null) {
 
-			img.cropFilter(this.selectedRectangle.getPositionX(), this.selectedRectangle.getPositionY(), e.getY(),
+			frame.cropCurrentImage(selectedRectangle.getPositionX(), selectedRectangle.getPositionY(), e.getY(),
 					e.getX());
 
-			repaint();
+			this.isDragging = false;
 		}
 
 	}
 
 	/**
 	 * Create a new rectangle at the clicked position with initial size and color
-	 * 
+	 *
 	 */
 	@Override
 	public void mouseClicked(MouseEvent e) {
-		// TODO Auto-generated method stub
-		this.selectedRectangle = new Rectangle(e.getX(), e.getY(), 0, 0, this.color);
+		this.overlay.startSelection(e.getX(), e.getY());
 
 	}
 
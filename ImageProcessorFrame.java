@@ -5,10 +5,14 @@ import java.awt.Dimension;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.function.IntFunction;
 
 import javax.imageio.ImageIO;
 import javax.swing.JFileChooser;
@@ -19,6 +23,8 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
+import javax.swing.JTabbedPane;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -26,19 +32,27 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 /**
  * @author Khang Hoang Nguyen
  * @version Dec 07 2023
- * 
+ *
  *          The main frame of the Image Processor application.
- * 
+ *
  *          This frame provides a graphical user interface for opening images,
- *          applying filters, and saving the modified images.
+ *          applying filters, and saving the modified images. Each opened image
+ *          is a document shown in its own tab. Filters run in the background on
+ *          a FilterExecutor shared by all documents, and documents that have not
+ *          been used recently are spilled to disk when the open documents
+ *          exceed their memory budget.
  */
 public class ImageProcessorFrame extends JFrame implements ActionListener, ChangeListener {
 
 	private static final long serialVersionUID = 1L;
-	private Image image;
-	private ImagePanel imagePanel;
+	private JTabbedPane tabs;
+	private ArrayList<ImageDocument> documents;
+	private FilterExecutor executor;
+	private DocumentMemoryBudget memoryBudget;
 	private JMenuItem openingItem;
 	private JMenuItem saveItem;
+	private JMenuItem closeItem;
+	private JMenuItem saveMacroItem;
 	private JMenuItem redBlueSwapFilter;
 	private JMenuItem blackAndWhiteFilter;
 	private JMenuItem rotateClockwiseFilter;
@@ -46,21 +60,38 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 	private JMenuItem brightness;
 	private JMenuItem crop;
 	private JMenuItem zoom;
+	private JMenuItem lumaGrayscale;
+	private JMenuItem sepia;
+	private JMenuItem saturation;
+	private JMenuItem hueShift;
+	private JMenuItem boxBlur;
 	private File selectedFile;
 	private JFileChooser chooser;
 	private JPanel panel;
 	private JSlider bSlider;
 	private JSlider zSlider;
+	private JSlider sSlider;
+	private JSlider hSlider;
+	private JSlider blurSlider;
 	private boolean isDrawn = false;
+	private ImageDocument sliderDocument;
+	private int sliderMacroLength;
 
 	/**
 	 * Creates a new ImageProcessorFrame with a menu bar and initial setup.
 	 * Initializes the UI components and sets up event listeners.
 	 */
 	public ImageProcessorFrame() {
-		this.panel = new JPanel();
-
-		this.add(panel);
+		this.panel = new JPanel(new BorderLayout());
+		this.tabs = new JTabbedPane();
+		this.tabs.addChangeListener(this);
+		this.panel.add(this.tabs, BorderLayout.CENTER);
+		this.documents = new ArrayList<ImageDocument>();
+		this.executor = new FilterExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		this.memoryBudget = new DocumentMemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+		Image.getMemoryGovernor().addPressureHandler(() -> SwingUtilities.invokeLater(this::relieveMemoryPressure));
+
+		this.setContentPane(panel);
 		this.setDefaultCloseOperation(EXIT_ON_CLOSE);
 
 		JMenuBar menubar = new JMenuBar();
@@ -72,9 +103,21 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 		this.saveItem = new JMenuItem("Save");
 		saveItem.addActionListener(this);
 		fileMenu.add(saveItem);
-		menubar.add(fileMenu);
 		this.saveItem.setEnabled(false);
 
+		this.closeItem = new JMenuItem("Close");
+		this.closeItem.setToolTipText("Close the image in the current tab");
+		closeItem.addActionListener(this);
+		fileMenu.add(closeItem);
+		this.closeItem.setEnabled(false);
+
+		this.saveMacroItem = new JMenuItem("Save Macro");
+		this.saveMacroItem.setToolTipText("Save the filters applied to the current image so they can be replayed");
+		saveMacroItem.addActionListener(this);
+		fileMenu.add(saveMacroItem);
+		this.saveMacroItem.setEnabled(false);
+		menubar.add(fileMenu);
+
 		JMenu filterMenu = new JMenu("Filter");
 		this.redBlueSwapFilter = new JMenuItem("Red Blue Swap Filter");
 		this.redBlueSwapFilter.setToolTipText("Swap the red and blue amounts of the RGB model for color");
@@ -119,44 +162,89 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 		filterMenu.add(zoom);
 		this.zoom.setEnabled(false);
 
+		this.lumaGrayscale = new JMenuItem("Luma Grayscale");
+		this.lumaGrayscale.setToolTipText("Convert the image to gray by perceived brightness (Rec. 709)");
+		this.lumaGrayscale.addActionListener(this);
+		filterMenu.add(lumaGrayscale);
+		this.lumaGrayscale.setEnabled(false);
+
+		this.sepia = new JMenuItem("Sepia");
+		this.sepia.setToolTipText("Give the image the brown tone of an old photograph");
+		this.sepia.addActionListener(this);
+		filterMenu.add(sepia);
+		this.sepia.setEnabled(false);
+
+		this.saturation = new JMenuItem("Saturation");
+		this.saturation.setToolTipText("Use the slider below. Slide left for duller colors, slide right for more vivid colors.");
+		this.saturation.addActionListener(this);
+		filterMenu.add(saturation);
+		this.saturation.setEnabled(false);
+
+		this.hueShift = new JMenuItem("Hue Shift");
+		this.hueShift.setToolTipText("Use the slider below to rotate the colors around the color wheel.");
+		this.hueShift.addActionListener(this);
+		filterMenu.add(hueShift);
+		this.hueShift.setEnabled(false);
+
+		this.boxBlur = new JMenuItem("Box Blur");
+		this.boxBlur.setToolTipText("Use the slider below to choose how far each pixel is averaged with its neighbors.");
+		this.boxBlur.addActionListener(this);
+		filterMenu.add(boxBlur);
+		this.boxBlur.setEnabled(false);
+
 		menubar.add(filterMenu);
 		this.setPreferredSize(new Dimension(700, 700));
 		this.setTitle("GUI");
 		this.setJMenuBar(menubar);
 		this.pack();
 
+		this.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowOpened(WindowEvent e) {
+				// the chooser is slow to create, so create it while the user looks at the frame
+				SwingUtilities.invokeLater(() -> {
+					Startup.reportFirstFrame();
+					getChooser();
+				});
+			}
+		});
+
 	}
 
 	/**
 	 * Handles the opening of an image file. Enables filter options, opens a file
-	 * chooser dialog, loads the selected image, and updates the UI to display the
-	 * selected image.
+	 * chooser dialog, and opens the selected image as a new document in its own
+	 * tab. The image is read in the background.
 	 */
 	private void handleOpeningItemAction() {
-		this.redBlueSwapFilter.setEnabled(true);
-		this.blackAndWhiteFilter.setEnabled(true);
-		this.rotateClockwiseFilter.setEnabled(true);
-		this.colorInversion.setEnabled(true);
-		this.brightness.setEnabled(true);
-		this.crop.setEnabled(true);
-		this.zoom.setEnabled(true);
-
-		this.chooser = new JFileChooser();
-		FileNameExtensionFilter filter = new FileNameExtensionFilter("JPEG files", "jpg", "jpeg", "png");
-		chooser.addChoosableFileFilter(filter);
-		chooser.setFileFilter(filter);
-
-		this.selectedFile = new File("/Users/nguyen_hoang_khang/Downloads");
-		chooser.setCurrentDirectory(this.selectedFile);
+		JFileChooser chooser = prepareChooser(new FileNameExtensionFilter("JPEG files", "jpg", "jpeg", "png"), null,
+				null);
 
 		int returnVal = chooser.showOpenDialog(this);
 		if (returnVal == JFileChooser.APPROVE_OPTION) {
+			Startup.markOpenChosen();
 			this.selectedFile = new File(chooser.getSelectedFile().getAbsolutePath());
-			System.out.println("You chose to open this file: " + chooser.getSelectedFile().getName());
-			this.image = new Image(this.selectedFile.getAbsolutePath());
-			this.imagePanel = new ImagePanel(this.image, this);
-			setContentPane(this.imagePanel);
-			revalidate();
+
+			ImageDocument document = new ImageDocument(this.selectedFile);
+			this.documents.add(document);
+			this.tabs.addTab(document.getName(), document.getView());
+			this.tabs.setSelectedComponent(document.getView());
+			runDocumentJob(document, document::load);
+
+			this.redBlueSwapFilter.setEnabled(true);
+			this.blackAndWhiteFilter.setEnabled(true);
+			this.rotateClockwiseFilter.setEnabled(true);
+			this.colorInversion.setEnabled(true);
+			this.brightness.setEnabled(true);
+			this.crop.setEnabled(true);
+			this.zoom.setEnabled(true);
+			this.lumaGrayscale.setEnabled(true);
+			this.sepia.setEnabled(true);
+			this.saturation.setEnabled(true);
+			this.hueShift.setEnabled(true);
+			this.boxBlur.setEnabled(true);
+			this.closeItem.setEnabled(true);
+			this.saveMacroItem.setEnabled(true);
 
 		} else {
 			JOptionPane.showMessageDialog(null, "alert", "Get File cancelled", JOptionPane.ERROR_MESSAGE);
@@ -164,37 +252,107 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 	}
 
 	/**
-	 * Handles the saving of the modified image to a file.
+	 * Handles the saving of the modified image in the current tab to a file. The
+	 * image itself is saved, without the crop selection drawn over it.
 	 */
 	private void handleSaveItemAction() {
-		this.chooser = new JFileChooser();
-		chooser.setSelectedFile(new File("new_drawing.jpg"));
-		chooser.setFileFilter(new FileNameExtensionFilter("JPG  Images", "jpg"));
-		chooser.setDialogTitle("Select the location for the new file.");
+		ImageDocument document = currentDocument();
+		if (document == null || !document.isLoaded() || document.isBusy()) {
+			JOptionPane.showMessageDialog(null, "The image is not ready to be saved yet.");
+			return;
+		}
+
+		JFileChooser chooser = prepareChooser(new FileNameExtensionFilter("JPG  Images", "jpg"),
+				"Select the location for the new file.", new File("new_drawing.jpg"));
 		if(chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) {
 			JOptionPane.showMessageDialog(null, "Save file cancelled.");
 			return;
-		}	
-		BufferedImage img = new BufferedImage(this.imagePanel.getWidth(), this.imagePanel.getHeight(), 
-				BufferedImage.TYPE_INT_RGB);
-		this.imagePanel.paint(img.getGraphics());
+		}
+		// spilled since the check above, e.g. while the dialog was open
+		Image image = document.getLoadedImage();
+		if (image == null) {
+			JOptionPane.showMessageDialog(null, "The image is not ready to be saved yet.");
+			return;
+		}
+		BufferedImage img = image.toBufferedImage();
 		try {
 			ImageIO.write(img, "jpg", chooser.getSelectedFile());
 		}
 		catch(IOException ex) {
 			JOptionPane.showMessageDialog(null, "The drawing cannot be written to file.");
 		}
-	
+
+	}
+
+	/**
+	 * Gets the file chooser shared by all file dialogs, creating it on first use.
+	 * Creating a JFileChooser is slow, so one is reused, which also lets it
+	 * remember the last folder used.
+	 *
+	 * @return - the chooser.
+	 */
+	private JFileChooser getChooser() {
+		if (this.chooser == null) {
+			this.chooser = new JFileChooser();
+			this.chooser.setCurrentDirectory(new File("/Users/nguyen_hoang_khang/Downloads"));
+		}
+		return this.chooser;
+	}
+
+	/**
+	 * Sets up the shared file chooser for the next dialog.
+	 *
+	 * @param filter   - the only file filter offered besides all files.
+	 * @param title    - the dialog title, or null for the default title.
+	 * @param selected - the file selected at first, or null.
+	 * @return - the chooser.
+	 */
+	private JFileChooser prepareChooser(FileNameExtensionFilter filter, String title, File selected) {
+		JFileChooser chooser = getChooser();
+		chooser.resetChoosableFileFilters();
+		chooser.setFileFilter(filter);
+		chooser.setDialogTitle(title);
+		chooser.setSelectedFile(selected);
+		return chooser;
+	}
+
+	/**
+	 * Handles closing the document in the current tab.
+	 */
+	private void handleCloseItemAction() {
+		ImageDocument document = currentDocument();
+		if (document == null)
+			return;
+
+		removeSlider();
+		this.documents.remove(document);
+		this.tabs.remove(document.getView());
+		this.executor.submit(document, document::close);
+
+		if (this.documents.isEmpty()) {
+			this.redBlueSwapFilter.setEnabled(false);
+			this.blackAndWhiteFilter.setEnabled(false);
+			this.rotateClockwiseFilter.setEnabled(false);
+			this.colorInversion.setEnabled(false);
+			this.brightness.setEnabled(false);
+			this.crop.setEnabled(false);
+			this.zoom.setEnabled(false);
+			this.lumaGrayscale.setEnabled(false);
+			this.sepia.setEnabled(false);
+			this.saturation.setEnabled(false);
+			this.hueShift.setEnabled(false);
+			this.boxBlur.setEnabled(false);
+			this.saveItem.setEnabled(false);
+			this.closeItem.setEnabled(false);
+			this.saveMacroItem.setEnabled(false);
+		}
 	}
 
 	/**
 	 * Handles the action of applying the red-blue swap filter and updating the UI.
 	 */
 	private void handleredBlueSwapFilterAction() {
-		this.image.redBlueSwapFilter();
-		this.imagePanel = new ImagePanel(this.image, this);
-		setContentPane(this.imagePanel);
-		revalidate();
+		applyFilter(FilterChain.RED_BLUE_SWAP);
 
 	}
 
@@ -203,10 +361,7 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 	 * UI.
 	 */
 	private void handleblackAndWhiteFilterAction() {
-		this.image.blackAndWhiteFilter();
-		this.imagePanel = new ImagePanel(this.image, this);
-		setContentPane(this.imagePanel);
-		revalidate();
+		applyFilter(FilterChain.BLACK_AND_WHITE);
 	}
 
 	/**
@@ -214,10 +369,7 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 	 * UI.
 	 */
 	private void handlerotateClockwiseFilterAction() {
-		this.image.rotateClockwiseFilter();
-		this.imagePanel = new ImagePanel(this.image, this);
-		setContentPane(this.imagePanel);
-		revalidate();
+		applyFilter(FilterChain.ROTATE);
 	}
 
 	/**
@@ -226,18 +378,17 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 	 */
 	private void handlecolorInversionFilterAction() {
 
-		this.image.customFilter();
-		this.imagePanel = new ImagePanel(this.image, this);
-		setContentPane(this.imagePanel);
-		revalidate();
+		applyFilter(FilterChain.INVERT);
 	}
 
 	/**
 	 * Handles the action to apply a brightness filter to the image. This method
 	 * initializes a user interface component (JSlider) for adjusting brightness.
-	 * 
+	 *
 	 * The brightness can be adjusted by sliding the slider to the left (negative
-	 * values for darker) or to the right (positive values for brighter).
+	 * values for darker) or to the right (positive values for brighter). Each
+	 * slider value is applied to the image as it was when the slider appeared, so
+	 * moving back to an earlier value reuses the cached result.
 	 */
 
 	private void handleBrightnessFilterAction() {
@@ -248,23 +399,41 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 		this.bSlider.setPaintLabels(true);
 		this.bSlider.addChangeListener(this);
 		this.bSlider.setEnabled(true);
-
-		JPanel overall = new JPanel(new BorderLayout());
-		overall.add(bSlider, BorderLayout.SOUTH);
-		overall.add(this.imagePanel, BorderLayout.CENTER);
-		this.setContentPane(overall);
-		revalidate();
+		showSlider(this.bSlider);
 	}
 
 	/**
 	 * Handles the action to apply a crop filter to the image. This method
-	 * initializes a new ImagePanel with the cropped image and updates the content
-	 * pane.
+	 * initializes a new ImagePanel for the current document so a fresh selection
+	 * can be drawn.
 	 */
 	private void handleCropFilterAction() {
-		this.imagePanel = new ImagePanel(this.image, this);
-		this.setContentPane(this.imagePanel);
-		revalidate();
+		ImageDocument document = currentDocument();
+		if (document != null && document.isLoaded() && !document.isBusy())
+			document.refreshView(this);
+	}
+
+	/**
+	 * Crops the image in the current tab. Called by the ImagePanel once the user
+	 * finishes drawing the selection.
+	 *
+	 * @param startX - the starting X-coordinate of the crop region.
+	 * @param startY - the starting Y-coordinate of the crop region.
+	 * @param endX   - the ending X-coordinate of the crop region.
+	 * @param endY   - the ending Y-coordinate of the crop region
+	 */
+	public void cropCurrentImage(int startX, int startY, int endX, int endY) {
+		ImageDocument document = currentDocument();
+		if (document == this.sliderDocument)
+			removeSlider();
+		if (document != null)
+			runDocumentJob(document, () -> {
+				Image image = document.getImage();
+				int rows = image.getNumberOfRows();
+				int cols = image.getNumberOfColumns();
+				image.cropFilter(startX, startY, endX, endY);
+				document.getMacro().recordCrop(startX, startY, endX, endY, rows, cols);
+			});
 	}
 
 	/**
@@ -277,10 +446,15 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 		this.colorInversion.setEnabled(this.isDrawn);
 		this.brightness.setEnabled(this.isDrawn);
 		this.zoom.setEnabled(this.isDrawn);
+		this.lumaGrayscale.setEnabled(this.isDrawn);
+		this.sepia.setEnabled(this.isDrawn);
+		this.saturation.setEnabled(this.isDrawn);
+		this.hueShift.setEnabled(this.isDrawn);
+		this.boxBlur.setEnabled(this.isDrawn);
 	}
 
 	/**
-	 * Enables various filter menu items. 
+	 * Enables various filter menu items.
 	 */
 	public void enableFilterMenuItems() {
 		this.isDrawn = true;
@@ -291,17 +465,23 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 		this.colorInversion.setEnabled(this.isDrawn);
 		this.brightness.setEnabled(this.isDrawn);
 		this.zoom.setEnabled(isDrawn);
+		this.lumaGrayscale.setEnabled(this.isDrawn);
+		this.sepia.setEnabled(this.isDrawn);
+		this.saturation.setEnabled(this.isDrawn);
+		this.hueShift.setEnabled(this.isDrawn);
+		this.boxBlur.setEnabled(this.isDrawn);
 
 	}
 
 	/**
-	 * Handles the action to apply a zoom filter to the image. 
+	 * Handles the action to apply a zoom filter to the image.
 	 * This method initializes a JSlider for adjusting the zoom level and updates the content
-	 * pane. 
-	 * 
+	 * pane.
+	 *
 	 * The zoom level can be adjusted by sliding the slider to the left
 	 * (negative values for zooming out) or to the right (positive values for
-	 * zooming in).
+	 * zooming in). Like brightness, each value is applied to the image as it was
+	 * when the slider appeared.
 	 */
 	public void handleZoomFilter() {
 		this.zSlider = new JSlider(-4, 4, 0);
@@ -310,19 +490,240 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 		this.zSlider.setPaintLabels(true);
 		this.zSlider.addChangeListener(this);
 		this.zSlider.setEnabled(true);
+		showSlider(this.zSlider);
+	}
+
+	/**
+	 * Handles the action of applying the luma grayscale filter and updating the
+	 * UI.
+	 */
+	private void handleLumaGrayscaleFilterAction() {
+		applyFilter(FilterChain.step(FilterChain.LUMA, 709));
+	}
+
+	/**
+	 * Handles the action of applying the sepia filter and updating the UI.
+	 */
+	private void handleSepiaFilterAction() {
+		applyFilter(FilterChain.SEPIA);
+	}
+
+	/**
+	 * Handles the action to apply a saturation filter to the image. This method
+	 * initializes a JSlider for the saturation as a percentage of the current
+	 * one: 0 is gray, 100 leaves the image unchanged.
+	 */
+	private void handleSaturationFilterAction() {
+		this.sSlider = new JSlider(0, 200, 100);
+		this.sSlider.setMajorTickSpacing(50);
+		this.sSlider.setMinorTickSpacing(10);
+		this.sSlider.setPaintTicks(true);
+		this.sSlider.setPaintLabels(true);
+		this.sSlider.addChangeListener(this);
+		this.sSlider.setEnabled(true);
+		showSlider(this.sSlider);
+	}
+
+	/**
+	 * Handles the action to apply a hue shift filter to the image. This method
+	 * initializes a JSlider for the rotation of the hue in degrees.
+	 */
+	private void handleHueShiftFilterAction() {
+		this.hSlider = new JSlider(-180, 180, 0);
+		this.hSlider.setMajorTickSpacing(60);
+		this.hSlider.setMinorTickSpacing(15);
+		this.hSlider.setPaintTicks(true);
+		this.hSlider.setPaintLabels(true);
+		this.hSlider.addChangeListener(this);
+		this.hSlider.setEnabled(true);
+		showSlider(this.hSlider);
+	}
+
+	/**
+	 * Handles the action to apply a box blur filter to the image. This method
+	 * initializes a JSlider for the blur radius in pixels.
+	 */
+	private void handleBoxBlurFilterAction() {
+		this.blurSlider = new JSlider(0, 20, 0);
+		this.blurSlider.setMajorTickSpacing(5);
+		this.blurSlider.setMinorTickSpacing(1);
+		this.blurSlider.setPaintTicks(true);
+		this.blurSlider.setPaintLabels(true);
+		this.blurSlider.addChangeListener(this);
+		this.blurSlider.setEnabled(true);
+		showSlider(this.blurSlider);
+	}
+
+	/**
+	 * Shows the given slider below the tabs. The slider adjusts the current
+	 * document, starting from the filters applied to it so far.
+	 */
+	private void showSlider(JSlider slider) {
+		ImageDocument document = currentDocument();
+		if (document == null || !document.isLoaded() || document.isBusy()) {
+			JOptionPane.showMessageDialog(null, "Please wait for the current filter to finish.");
+			return;
+		}
+
+		removeSlider();
+		this.sliderDocument = document;
+		this.sliderMacroLength = document.getMacro().size();
+		this.executor.submit(document, document::pinSliderBase);
+		this.panel.add(slider, BorderLayout.SOUTH);
+		this.panel.revalidate();
+	}
+
+	/**
+	 * Removes the slider of the last slider filter, if one is shown, and drops
+	 * the copy of the image it was applied to.
+	 */
+	private void removeSlider() {
+		BorderLayout layout = (BorderLayout) this.panel.getLayout();
+		if (layout.getLayoutComponent(BorderLayout.SOUTH) != null) {
+			this.panel.remove(layout.getLayoutComponent(BorderLayout.SOUTH));
+			this.panel.revalidate();
+			this.panel.repaint();
+		}
+		ImageDocument document = this.sliderDocument;
+		if (document != null)
+			this.executor.submit(document, document::unpinSliderBase);
+		this.sliderDocument = null;
+	}
+
+	/**
+	 * Gets the document shown in the selected tab.
+	 *
+	 * @return - the current document, or null if no document is open.
+	 */
+	private ImageDocument currentDocument() {
+		int index = this.tabs.getSelectedIndex();
+		return index < 0 ? null : this.documents.get(index);
+	}
 
-		JPanel overall = new JPanel(new BorderLayout());
-		overall.add(zSlider, BorderLayout.SOUTH);
-		overall.add(this.imagePanel, BorderLayout.CENTER);
-		this.setContentPane(overall);
-		revalidate();
+	/**
+	 * Applies the given filter step to the image in the current tab in the
+	 * background and records it in the document's macro, then updates the UI. A
+	 * slider shown for the document is removed, so its next value is not applied
+	 * to the image from before this filter.
+	 */
+	private void applyFilter(String step) {
+		ImageDocument document = currentDocument();
+		if (document == this.sliderDocument)
+			removeSlider();
+		if (document != null)
+			runDocumentJob(document, () -> {
+				FilterChain.applyStep(document.getImage(), step);
+				document.getMacro().record(step);
+			});
+	}
+
+	/**
+	 * Handles saving the macro of the document in the current tab, so its filters
+	 * can be replayed on other images with --replay.
+	 */
+	private void handleSaveMacroItemAction() {
+		ImageDocument document = currentDocument();
+		if (document == null || document.isBusy()) {
+			JOptionPane.showMessageDialog(null, "Please wait for the current filter to finish.");
+			return;
+		}
+
+		JFileChooser chooser = prepareChooser(new FileNameExtensionFilter("Image Processor macros", "macro"),
+				"Select the location for the macro file.", new File(document.getName() + ".macro"));
+		if (chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) {
+			JOptionPane.showMessageDialog(null, "Save macro cancelled.");
+			return;
+		}
+		try {
+			document.getMacro().save(chooser.getSelectedFile().toPath());
+		} catch (IOException ex) {
+			JOptionPane.showMessageDialog(null, "The macro cannot be written to file.");
+		}
+	}
+
+	/**
+	 * Runs a job that only reads a document, such as rendering part of it for the
+	 * screen, on the shared executor. The job runs after the jobs already
+	 * submitted for the same owner, but it is not counted as a pending job of the
+	 * document and does not refresh its tab.
+	 *
+	 * @param owner - the owner the job is queued with, e.g. the image it reads.
+	 * @param job   - the job.
+	 */
+	public void runInBackground(Object owner, Runnable job) {
+		this.executor.submit(owner, job);
+	}
+
+	/**
+	 * Runs a job for the given document on the shared executor. Once every job
+	 * submitted for the document has finished, its tab is rebuilt from the
+	 * current image and the memory budget is enforced.
+	 */
+	private void runDocumentJob(ImageDocument document, Runnable job) {
+		document.jobSubmitted();
+		document.markActive();
+		this.executor.submit(document, () -> {
+			Throwable failure = null;
+			try {
+				job.run();
+			} catch (Throwable e) {
+				// includes OutOfMemoryError, which must not leave the document busy for good
+				failure = e;
+			} finally {
+				Throwable error = failure;
+				SwingUtilities.invokeLater(() -> handleJobFinished(document, error));
+			}
+		});
+	}
+
+	/**
+	 * Updates the UI after a job for the given document has finished.
+	 */
+	private void handleJobFinished(ImageDocument document, Throwable error) {
+		document.jobFinished();
+		if (error != null)
+			JOptionPane.showMessageDialog(null, "The filter could not be applied to " + document.getName() + ": "
+					+ (error.getMessage() == null ? error.toString() : error.getMessage()));
+
+		if (!document.isBusy() && this.documents.contains(document)) {
+			document.refreshView(this);
+			enforceMemoryBudget();
+		}
+	}
+
+	/**
+	 * Spills the least recently used documents to disk while the open documents
+	 * are over the memory budget.
+	 */
+	private void enforceMemoryBudget() {
+		for (ImageDocument document : this.memoryBudget.selectForSpill(this.documents, currentDocument())) {
+			if (document == this.sliderDocument)
+				removeSlider();
+			runDocumentJob(document, document::spill);
+		}
+	}
+
+	/**
+	 * Spills every document that is not shown and has no unfinished jobs. Called
+	 * when a filter cannot find room for a new buffer; the spilled memory helps
+	 * the filters that run after it, while the filter that ran out of room falls
+	 * back to a variant that needs less memory.
+	 */
+	private void relieveMemoryPressure() {
+		for (ImageDocument document : new ArrayList<ImageDocument>(this.documents)) {
+			if (document == currentDocument() || !document.isLoaded() || document.isBusy())
+				continue;
+			if (document == this.sliderDocument)
+				removeSlider();
+			runDocumentJob(document, document::spill);
+		}
 	}
 
 	/**
 	 * Handles the event triggered when the user chooses to open an image file.
 	 * Enables filter options, opens a file chooser dialog, loads the selected
 	 * image, and updates the UI to display the selected image.
-	 * 
+	 *
 	 * @param e The ActionEvent representing the user's action.
 	 */
 	@Override
@@ -335,6 +736,14 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 
 			handleSaveItemAction();
 
+		} else if (e.getSource() == this.closeItem) {
+
+			handleCloseItemAction();
+
+		} else if (e.getSource() == this.saveMacroItem) {
+
+			handleSaveMacroItemAction();
+
 		} else if (e.getSource() == this.blackAndWhiteFilter) {
 			handleblackAndWhiteFilterAction();
 			this.saveItem.setEnabled(true);
@@ -363,37 +772,81 @@ public class ImageProcessorFrame extends JFrame implements ActionListener, Chang
 			handleZoomFilter();
 			this.saveItem.setEnabled(true);
 
+		} else if (e.getSource() == this.lumaGrayscale) {
+			handleLumaGrayscaleFilterAction();
+			this.saveItem.setEnabled(true);
+
+		} else if (e.getSource() == this.sepia) {
+			handleSepiaFilterAction();
+			this.saveItem.setEnabled(true);
+
+		} else if (e.getSource() == this.saturation) {
+			handleSaturationFilterAction();
+			this.saveItem.setEnabled(true);
+
+		} else if (e.getSource() == this.hueShift) {
+			handleHueShiftFilterAction();
+			this.saveItem.setEnabled(true);
+
+		} else if (e.getSource() == this.boxBlur) {
+			handleBoxBlurFilterAction();
+			this.saveItem.setEnabled(true);
+
 		}
 	}
 
 	/**
-	 * Invoked when the state of a slider component changes. 
+	 * Invoked when the state of a slider component changes, or when another tab
+	 * is selected. Selecting the tab of a spilled document reads it back from
+	 * disk.
 	 */
 
 	@Override
 	public void stateChanged(ChangeEvent e) {
-		// TODO Auto-generated method stub
-		if (e.getSource() == this.bSlider) {
-			JSlider src = (JSlider) e.getSource();
-			if (!src.getValueIsAdjusting()) {
-				int val = (int) src.getValue();
-
-				this.image.brightnessFilter(val);
-				this.imagePanel = new ImagePanel(this.image, this);
-				setContentPane(this.imagePanel);
-				revalidate();
-
+		if (e.getSource() == this.tabs) {
+			ImageDocument document = currentDocument();
+			if (document != this.sliderDocument)
+				removeSlider();
+			if (document != null) {
+				document.markActive();
+				if (document.isSpilled())
+					runDocumentJob(document, document::restore);
 			}
+		} else if (e.getSource() == this.bSlider) {
+			applySliderFilter(this.bSlider, val -> FilterChain.step(FilterChain.BRIGHTNESS, val));
 		} else if (e.getSource() == this.zSlider) {
-			JSlider src = (JSlider) e.getSource();
-			if (!src.getValueIsAdjusting()) {
-				int val = (int) src.getValue();
-
-				this.image.customFeatureZoomIn(val);
-				this.imagePanel = new ImagePanel(this.image, this);
-				setContentPane(this.imagePanel);
-				revalidate();
-			}
+			applySliderFilter(this.zSlider, val -> FilterChain.step(FilterChain.ZOOM, val));
+		} else if (e.getSource() == this.sSlider) {
+			applySliderFilter(this.sSlider, val -> FilterChain.step(FilterChain.SATURATION, val));
+		} else if (e.getSource() == this.hSlider) {
+			applySliderFilter(this.hSlider, val -> FilterChain.step(FilterChain.HUE, val));
+		} else if (e.getSource() == this.blurSlider) {
+			applySliderFilter(this.blurSlider, val -> FilterChain.step(FilterChain.BLUR, val));
+		}
+	}
+
+	/**
+	 * Applies the value of a slider once the user lets go of it. The value is
+	 * applied to the copy of the image the document kept when the slider
+	 * appeared, and replaces the step recorded in the macro for the previous
+	 * value.
+	 */
+	private void applySliderFilter(JSlider src, IntFunction<String> stepForValue) {
+		if (!src.getValueIsAdjusting() && this.sliderDocument != null) {
+			String step = stepForValue.apply(src.getValue());
+			int macroLength = this.sliderMacroLength;
+			ImageDocument document = this.sliderDocument;
+
+			runDocumentJob(document, () -> {
+				Image base = document.getSliderBase();
+				if (base == null)
+					throw new IllegalStateException("the image before the slider was moved is no longer available");
+				Image image = document.getImage();
+				image.revertTo(base);
+				FilterChain.applyStep(image, step);
+				document.getMacro().truncate(macroLength);
+				document.getMacro().record(step);
+			});
 		}
 	}
-}
\ No newline at end of file
+}
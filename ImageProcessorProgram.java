@@ -1,9 +1,76 @@
 package assign11;
 
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
+
+/**
+ * Starts the Image Processor.
+ *
+ * With no arguments the graphical Image Processor is shown. With the argument
+ * --server [port] it instead runs as a local HTTP filter service (see
+ * FilterServer) on the given port, 8080 by default. With the arguments
+ * --watch inputFolder outputFolder chain it runs as a WatchFolderDaemon that
+ * applies the chain (e.g. "invert;brightness:20") to every image dropped into
+ * the input folder. With the arguments --frames input output chain it applies
+ * the chain to every frame of an animated GIF or multi-page TIFF (see
+ * MultiFrameProcessor). With the arguments --replay macroFile outputFolder
+ * images... it replays a macro saved from the GUI on each of the images (see
+ * MacroReplayer). With the argument --train it runs through the start-up
+ * path once and exits, to record an AppCDS archive (see Startup).
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
 public class ImageProcessorProgram {
 
-	public static void main(String[] args) {
-		// TODO Auto-generated method stub
+	public static void main(String[] args) throws IOException {
+		// every mode reads images from files or memory, so ImageIO need not cache streams on disk
+		ImageIO.setUseCache(false);
+		if (args.length > 0 && args[0].equals("--server")) {
+			int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+			int processors = Runtime.getRuntime().availableProcessors();
+			new FilterServer(port, 16 * processors, processors).start();
+			return;
+		} else if (args.length == 4 && args[0].equals("--watch")) {
+			new WatchFolderDaemon(Paths.get(args[1]), Paths.get(args[2]),
+					FilterChain.parse(args[3]), Runtime.getRuntime().availableProcessors()).run();
+			return;
+		} else if (args.length == 4 && args[0].equals("--frames")) {
+			int processors = Runtime.getRuntime().availableProcessors();
+			int frames = new MultiFrameProcessor(FilterChain.parse(args[3]), 2 * processors, processors)
+					.process(new File(args[1]), new File(args[2]));
+			System.out.println("Wrote " + frames + " frames to " + args[2]);
+			return;
+		} else if (args.length == 1 && args[0].equals("--train")) {
+			Startup.warmUp();
+			if (!GraphicsEnvironment.isHeadless())
+				SwingUtilities.invokeLater(() -> {
+					ImageProcessorFrame frame = new ImageProcessorFrame();
+					new JFileChooser();
+					frame.dispose();
+				});
+			return;
+		} else if (args.length >= 4 && args[0].equals("--replay")) {
+			ArrayList<Path> inputs = new ArrayList<Path>();
+			for (int i = 3; i < args.length; i++)
+				inputs.add(Paths.get(args[i]));
+			MacroReplayer replayer = new MacroReplayer(EditMacro.load(Paths.get(args[1])),
+					Runtime.getRuntime().availableProcessors());
+			int written = replayer.replay(inputs, Paths.get(args[2]));
+			System.out.println("Replayed \"" + replayer.getMacro() + "\" on " + written + " of " + inputs.size()
+					+ " images");
+			return;
+		}
+
+		Startup.warmUpInBackground();
 		ImageProcessorFrame frame = new ImageProcessorFrame();
 		frame.setVisible(true);
 		}
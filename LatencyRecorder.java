@@ -0,0 +1,72 @@
+package assign11;
+
+import java.util.Arrays;
+
+/**
+ * This class records how long recent requests took and reports percentiles of
+ * those times. Only the most recent samples are kept, so the percentiles
+ * follow the current load rather than the whole life of the program.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class LatencyRecorder {
+
+	private final long[] samples;
+	private int next;
+	private int count;
+	private long total;
+
+	/**
+	 * Creates a new recorder.
+	 *
+	 * @param capacity - number of recent samples to keep.
+	 */
+	public LatencyRecorder(int capacity) {
+		this.samples = new long[capacity];
+	}
+
+	/**
+	 * Records the time one request took.
+	 *
+	 * @param nanos - the duration in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+		this.samples[this.next] = nanos;
+		this.next = (this.next + 1) % this.samples.length;
+		this.count = Math.min(this.count + 1, this.samples.length);
+		this.total++;
+	}
+
+	/**
+	 * Gets the given percentiles of the recent samples.
+	 *
+	 * @param percentiles - the percentiles to compute, each 0-100.
+	 * @return - the duration in nanoseconds at each percentile, or zeros if
+	 *         nothing was recorded yet.
+	 */
+	public long[] percentiles(double... percentiles) {
+		long[] sorted;
+		synchronized (this) {
+			sorted = Arrays.copyOf(this.samples, this.count);
+		}
+		Arrays.sort(sorted);
+
+		long[] result = new long[percentiles.length];
+		if (sorted.length > 0)
+			for (int i = 0; i < percentiles.length; i++) {
+				int rank = (int) Math.ceil(percentiles[i] / 100 * sorted.length) - 1;
+				result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+			}
+		return result;
+	}
+
+	/**
+	 * Gets the number of samples recorded since the recorder was created.
+	 *
+	 * @return - number of samples.
+	 */
+	public synchronized long getTotalCount() {
+		return this.total;
+	}
+}
@@ -0,0 +1,113 @@
+package assign11;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+/**
+ * This class replays an EditMacro on many image files without showing the
+ * GUI, e.g. to repeat an interactive edit on the full-resolution originals or
+ * on sibling images. The macro is optimized once and the files are processed
+ * in parallel. Results are written as PNG files to an output folder, named
+ * after the whole input file name, e.g. a.jpg becomes a.jpg.png, so inputs that
+ * differ only in their extension do not overwrite each other. Like the other
+ * modes without the GUI, the replay does not use the shared result cache: each
+ * file is filtered once, and caching its steps would only take memory from the
+ * other files being replayed.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class MacroReplayer {
+
+	private final EditMacro macro;
+	private final int threadCount;
+
+	/**
+	 * Creates a new replayer.
+	 *
+	 * @param macro       - the macro to replay.
+	 * @param threadCount - number of files processed at once.
+	 */
+	public MacroReplayer(EditMacro macro, int threadCount) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("threadCount must be at least 1");
+		this.macro = macro.optimize();
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Gets the optimized macro that is replayed.
+	 *
+	 * @return - the optimized macro.
+	 */
+	public EditMacro getMacro() {
+		return this.macro;
+	}
+
+	/**
+	 * Replays the macro on every input file. A file that cannot be processed is
+	 * reported and skipped; the other files are still processed.
+	 *
+	 * @param inputs       - the image files to edit.
+	 * @param outputFolder - the folder to write results to; created if needed.
+	 * @return - the number of files written.
+	 * @throws IOException if the output folder cannot be created.
+	 */
+	public int replay(List<Path> inputs, Path outputFolder) throws IOException {
+		Files.createDirectories(outputFolder);
+		ExecutorService pool = Executors.newFixedThreadPool(this.threadCount);
+		try {
+			ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+			for (Path input : inputs)
+				results.add(pool.submit(() -> {
+					replayFile(input, outputFolder);
+					return null;
+				}));
+
+			int written = 0;
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+					written++;
+				} catch (ExecutionException e) {
+					System.out.println("The image " + inputs.get(i).getFileName() + " cannot be processed: "
+							+ e.getCause());
+				}
+			}
+			return written;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while replaying the macro", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Replays the macro on one file and writes the result.
+	 */
+	private void replayFile(Path input, Path outputFolder) throws IOException {
+		BufferedImage source = ImageIO.read(input.toFile());
+		if (source == null)
+			throw new IOException("not an image in a supported format");
+		Image image = new Image(source);
+		image.setResultCaching(false);
+		this.macro.applyTo(image);
+
+		Path output = outputFolder.resolve(input.getFileName() + ".png");
+		Path temp = outputFolder.resolve("." + output.getFileName() + ".tmp");
+		ImageIO.write(image.toBufferedImage(), "png", temp.toFile());
+		Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
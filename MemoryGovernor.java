@@ -0,0 +1,177 @@
+package assign11;
+
+import java.util.ArrayList;
+
+/**
+ * This class represents a governor for the memory used by image buffers.
+ * Filters that allocate a new buffer while the old one is still live reserve
+ * the size of the new buffer first, and release it once the old buffer is
+ * dropped. A reservation succeeds only if the heap has room for it on top of
+ * the memory in use and the other reservations, and the reservations stay
+ * within a byte limit.
+ *
+ * The heap figures count garbage as memory in use until it is collected, e.g.
+ * the buffers of a version of an image that was replaced a moment ago. When
+ * there is not enough room, the governor therefore first runs a collection and
+ * checks again, and only then runs its pressure handlers in the order they
+ * were added (e.g. clearing the result cache, then spilling inactive
+ * documents), collecting and checking after each. If there is still not
+ * enough room the reservation fails, and the caller should fall back to a
+ * variant of the filter that needs less memory instead of allocating anyway.
+ * The handlers and collections run without holding the lock of the governor,
+ * so other threads can release and reserve room meanwhile.
+ *
+ * A reservation is counted until it is released, even once its buffer has
+ * been allocated and shows in the heap figures as well, so while reservations
+ * are held the governor errs on the side of refusing. Callers must therefore
+ * reserve everything they keep reachable at once, e.g. the new buffers of a
+ * filter and the old ones that a published version still holds, and release
+ * it as soon as the filter is done.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class MemoryGovernor {
+
+	private final Runtime runtime;
+	private final long safetyMargin;
+	private final ArrayList<Runnable> pressureHandlers;
+	private long limit;
+	private long reservedBytes;
+	private long refusedCount;
+
+	/**
+	 * Creates a new governor for the heap of this JVM.
+	 *
+	 * @param limit - most bytes that may be reserved at once.
+	 */
+	public MemoryGovernor(long limit) {
+		this.runtime = Runtime.getRuntime();
+		// room kept free for everything that is not an image buffer
+		this.safetyMargin = Math.max(16L << 20, this.runtime.maxMemory() / 20);
+		this.pressureHandlers = new ArrayList<Runnable>();
+		this.limit = limit;
+	}
+
+	/**
+	 * Adds a handler that frees memory, run when a reservation does not fit.
+	 *
+	 * @param handler - the handler.
+	 */
+	public synchronized void addPressureHandler(Runnable handler) {
+		this.pressureHandlers.add(handler);
+	}
+
+	/**
+	 * Reserves room for a buffer of the given size, running the pressure handlers
+	 * if there is not enough room. A successful reservation must be released with
+	 * release once the buffer it was made for has replaced the old one.
+	 *
+	 * @param bytes - size of the buffer about to be allocated.
+	 * @return - true if the room was reserved, false if the caller must not
+	 *         allocate the buffer.
+	 */
+	public boolean tryReserve(long bytes) {
+		ArrayList<Runnable> handlers;
+		synchronized (this) {
+			if (reserveIfFits(bytes))
+				return true;
+			// the handlers free heap, not room under the limit
+			if (this.reservedBytes + bytes > this.limit) {
+				this.refusedCount++;
+				return false;
+			}
+			handlers = new ArrayList<Runnable>(this.pressureHandlers);
+		}
+
+		// the garbage in the heap figures is only gone after a collection
+		System.gc();
+		if (reserveIfFits(bytes))
+			return true;
+		for (Runnable handler : handlers) {
+			handler.run();
+			System.gc();
+			if (reserveIfFits(bytes))
+				return true;
+		}
+
+		synchronized (this) {
+			this.refusedCount++;
+		}
+		return false;
+	}
+
+	private synchronized boolean reserveIfFits(long bytes) {
+		if (!fits(bytes))
+			return false;
+		this.reservedBytes += bytes;
+		return true;
+	}
+
+	/**
+	 * Releases room reserved with tryReserve.
+	 *
+	 * @param bytes - the size that was reserved.
+	 */
+	public synchronized void release(long bytes) {
+		this.reservedBytes -= bytes;
+	}
+
+	/**
+	 * Checks whether a buffer of the given size fits right now, without
+	 * reserving it or running the pressure handlers. Used for allocations that
+	 * can simply be skipped, like storing a result in a cache.
+	 *
+	 * @param bytes - size of the buffer.
+	 * @return - true if it fits.
+	 */
+	public synchronized boolean hasRoomFor(long bytes) {
+		return fits(bytes);
+	}
+
+	/**
+	 * Sets the most bytes that may be reserved at once.
+	 *
+	 * @param limit - the new limit.
+	 */
+	public synchronized void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Gets the bytes reserved right now.
+	 *
+	 * @return - reserved bytes.
+	 */
+	public synchronized long getReservedBytes() {
+		return this.reservedBytes;
+	}
+
+	/**
+	 * Gets the number of reservations that failed, i.e. how often a filter had to
+	 * fall back to a variant that needs less memory.
+	 *
+	 * @return - number of refused reservations.
+	 */
+	public synchronized long getRefusedCount() {
+		return this.refusedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "reserved=" + this.reservedBytes + " limit=" + this.limit + " refused=" + this.refusedCount
+				+ " heapFree=" + heapHeadroom();
+	}
+
+	private boolean fits(long bytes) {
+		return this.reservedBytes + bytes <= this.limit && this.reservedBytes + bytes <= heapHeadroom();
+	}
+
+	/**
+	 * Gets the bytes the heap can still grow by, less the safety margin.
+	 */
+	private long heapHeadroom() {
+		long used = this.runtime.totalMemory() - this.runtime.freeMemory();
+		return this.runtime.maxMemory() - used - this.safetyMargin;
+	}
+}
@@ -0,0 +1,398 @@
+package assign11;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * This class applies a filter chain to every frame of a multi-frame image,
+ * such as an animated GIF or a multi-page TIFF, and writes the filtered frames
+ * to a new file of the same format.
+ *
+ * Frames are read one at a time and filtered in parallel, but no more than a
+ * fixed window of frames is read ahead of the frame being written, so memory
+ * use depends on the window and not on the number of frames. Frames are
+ * written in their original order.
+ *
+ * The alpha of frames that have it is kept: it is carried through the steps
+ * that move or blur pixels (rotate, crop, zoom and blur) and left alone by the
+ * color steps, so transparent pixels stay transparent.
+ *
+ * The frames of an optimized GIF may only cover part of the picture, at an
+ * offset, and rely on the frames before them to fill in the rest. If the
+ * chain keeps the frame size, each frame is filtered as it is and written
+ * with its offset, delay and disposal method. If the chain changes the size
+ * (rotate, crop or zoom), the offsets would be meaningless, so each frame is
+ * first drawn onto the full picture as shown at its time, following the
+ * disposal methods of the frames before it, and the whole picture is filtered
+ * and written. The metadata of frames of other formats is kept when the
+ * filters leave the frame size unchanged and dropped otherwise.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class MultiFrameProcessor {
+
+	private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+	private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+
+	private final FilterChain chain;
+	private final int window;
+	private final int threadCount;
+
+	/**
+	 * Creates a new processor.
+	 *
+	 * @param chain       - the filters to apply to each frame.
+	 * @param window      - the most frames read but not yet written at once.
+	 * @param threadCount - number of frames filtered at once.
+	 */
+	public MultiFrameProcessor(FilterChain chain, int window, int threadCount) {
+		if (window < 1 || threadCount < 1)
+			throw new IllegalArgumentException("window and threadCount must be at least 1");
+		this.chain = chain;
+		this.window = window;
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Filters every frame of the input file and writes the result to the output
+	 * file.
+	 *
+	 * @param input  - the multi-frame image to read.
+	 * @param output - the file to write.
+	 * @return - the number of frames written.
+	 * @throws IOException if the input cannot be read, its format cannot be
+	 *                     written with multiple frames, or the output cannot be
+	 *                     written.
+	 */
+	public int process(File input, File output) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(this.threadCount);
+		try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+			if (in == null)
+				throw new IOException("The file " + input + " cannot be read.");
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext())
+				throw new IOException("The file " + input + " is not an image in a supported format.");
+			ImageReader reader = readers.next();
+			reader.setInput(in, true, false);
+
+			ImageWriter writer = ImageIO.getImageWriter(reader);
+			if (writer == null || !writer.canWriteSequence())
+				throw new IOException("The " + reader.getFormatName() + " format cannot be written with multiple frames.");
+
+			boolean gif = reader.getFormatName().equalsIgnoreCase("gif");
+			GifCanvas canvas = gif && changesSize(this.chain) ? new GifCanvas(reader) : null;
+			output.delete();
+			try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+				writer.setOutput(out);
+				// a composed GIF takes its screen size from the first filtered frame
+				writer.prepareWriteSequence(gif && canvas == null ? gifStreamMetadata(reader, writer) : null);
+				int written = pipeline(reader, writer, pool, gif, canvas);
+				writer.endWriteSequence();
+				return written;
+			} finally {
+				writer.dispose();
+				reader.dispose();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads frames into the window, filters them on the pool and writes them in
+	 * order as they finish. Frames of a GIF are composed on the canvas, if one is
+	 * given, as they are read.
+	 */
+	private int pipeline(ImageReader reader, ImageWriter writer, ExecutorService pool, boolean gif,
+			GifCanvas canvas) throws IOException {
+		ArrayDeque<Future<IIOImage>> inFlight = new ArrayDeque<Future<IIOImage>>();
+		int read = 0;
+		int written = 0;
+		boolean more = true;
+
+		try {
+			while (more || !inFlight.isEmpty()) {
+				while (more && inFlight.size() < this.window) {
+					IIOImage frame;
+					try {
+						frame = reader.readAll(read, null);
+					} catch (IndexOutOfBoundsException e) {
+						more = false;
+						break;
+					}
+					read++;
+					IIOImage source = canvas == null ? frame : canvas.compose(frame);
+					inFlight.add(pool.submit(() -> filterFrame(source, gif)));
+				}
+
+				if (!inFlight.isEmpty()) {
+					IIOImage filtered = inFlight.poll().get();
+					if (gif)
+						filtered.setMetadata(gifFrameMetadata(writer, filtered, canvas != null));
+					writer.writeToSequence(filtered, null);
+					written++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while processing frames", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Frame " + written + " cannot be filtered: " + e.getCause().getMessage(),
+					e.getCause());
+		}
+		return written;
+	}
+
+	/**
+	 * Applies the filter chain to one frame, keeping its alpha. The metadata of a
+	 * GIF frame is passed on to be adapted by gifFrameMetadata; that of other
+	 * formats is kept if the size of the frame did not change.
+	 */
+	private IIOImage filterFrame(IIOImage frame, boolean gif) {
+		BufferedImage source = (BufferedImage) frame.getRenderedImage();
+		Image image = new Image(source);
+		image.setResultCaching(false);
+		image.applyFilterChain(this.chain);
+
+		BufferedImage result = source.getColorModel().hasAlpha() ? withAlpha(image, source) : image.toBufferedImage();
+		boolean sameSize = result.getWidth() == source.getWidth() && result.getHeight() == source.getHeight();
+		return new IIOImage(result, null, gif || sameSize ? frame.getMetadata() : null);
+	}
+
+	/**
+	 * Combines the filtered colors of a frame with its alpha, put through the
+	 * steps of the chain that move or blur pixels.
+	 */
+	private BufferedImage withAlpha(Image filtered, BufferedImage source) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		BufferedImage alphaAsGray = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[width];
+		for (int i = 0; i < height; i++) {
+			source.getRGB(0, i, width, 1, row, 0, width);
+			for (int j = 0; j < width; j++) {
+				int alpha = row[j] >>> 24;
+				row[j] = (alpha << 16) | (alpha << 8) | alpha;
+			}
+			alphaAsGray.setRGB(0, i, width, 1, row, 0, width);
+		}
+
+		Image alpha = new Image(alphaAsGray);
+		alpha.setResultCaching(false);
+		for (String step : this.chain.getSteps())
+			if (movesPixels(step))
+				FilterChain.applyStep(alpha, step);
+
+		BufferedImage colors = filtered.toBufferedImage();
+		BufferedImage mask = alpha.toBufferedImage();
+		BufferedImage result = new BufferedImage(colors.getWidth(), colors.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		int[] alphaRow = new int[colors.getWidth()];
+		row = new int[colors.getWidth()];
+		for (int i = 0; i < colors.getHeight(); i++) {
+			colors.getRGB(0, i, row.length, 1, row, 0, row.length);
+			mask.getRGB(0, i, row.length, 1, alphaRow, 0, row.length);
+			for (int j = 0; j < row.length; j++)
+				row[j] = (alphaRow[j] << 24) | (row[j] & 0xFFFFFF);
+			result.setRGB(0, i, row.length, 1, row, 0, row.length);
+		}
+		return result;
+	}
+
+	/**
+	 * Determines whether a step moves or blurs pixels, and so must also be
+	 * applied to the alpha of a frame.
+	 */
+	private static boolean movesPixels(String step) {
+		String name = FilterChain.nameOf(step);
+		return name.equals(FilterChain.BLUR) || changesSize(name);
+	}
+
+	private static boolean changesSize(String name) {
+		return name.equals(FilterChain.ROTATE) || name.equals(FilterChain.CROP) || name.equals(FilterChain.ZOOM);
+	}
+
+	private static boolean changesSize(FilterChain chain) {
+		for (String step : chain.getSteps())
+			if (changesSize(FilterChain.nameOf(step)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Creates the stream metadata of the output GIF, with the screen size of the
+	 * input but without its global color table, which does not fit the filtered
+	 * colors.
+	 */
+	private static IIOMetadata gifStreamMetadata(ImageReader reader, ImageWriter writer) throws IOException {
+		IIOMetadata input = reader.getStreamMetadata();
+		IIOMetadata output = writer.getDefaultStreamMetadata(null);
+		if (input == null)
+			return output;
+
+		IIOMetadataNode screen = child((IIOMetadataNode) input.getAsTree(GIF_STREAM_FORMAT),
+				"LogicalScreenDescriptor");
+		IIOMetadataNode tree = (IIOMetadataNode) output.getAsTree(GIF_STREAM_FORMAT);
+		IIOMetadataNode target = child(tree, "LogicalScreenDescriptor");
+		if (screen == null)
+			return output;
+		if (target != null)
+			tree.removeChild(target);
+		tree.appendChild(screen);
+		setFromTree(output, GIF_STREAM_FORMAT, tree);
+		return output;
+	}
+
+	/**
+	 * Creates the metadata of a filtered GIF frame: the default metadata for its
+	 * colors, which sets up transparency to match them, with the delay, user
+	 * input flag and extensions of the input frame. The offset and disposal
+	 * method are kept too, unless the frame was composed on the full picture,
+	 * which is written at the origin and cleared before the next frame.
+	 */
+	private static IIOMetadata gifFrameMetadata(ImageWriter writer, IIOImage frame, boolean composed)
+			throws IOException {
+		BufferedImage image = (BufferedImage) frame.getRenderedImage();
+		IIOMetadata output = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+		IIOMetadataNode tree = (IIOMetadataNode) output.getAsTree(GIF_IMAGE_FORMAT);
+		IIOMetadataNode source = (IIOMetadataNode) frame.getMetadata().getAsTree(GIF_IMAGE_FORMAT);
+
+		IIOMetadataNode control = child(tree, "GraphicControlExtension");
+		if (control == null) {
+			control = new IIOMetadataNode("GraphicControlExtension");
+			control.setAttribute("transparentColorFlag", "FALSE");
+			control.setAttribute("transparentColorIndex", "0");
+			tree.appendChild(control);
+		}
+		IIOMetadataNode sourceControl = child(source, "GraphicControlExtension");
+		control.setAttribute("delayTime", attribute(sourceControl, "delayTime", "0"));
+		control.setAttribute("userInputFlag", attribute(sourceControl, "userInputFlag", "FALSE"));
+		control.setAttribute("disposalMethod",
+				composed ? "restoreToBackgroundColor" : attribute(sourceControl, "disposalMethod", "none"));
+
+		if (!composed) {
+			IIOMetadataNode descriptor = child(tree, "ImageDescriptor");
+			IIOMetadataNode sourceDescriptor = child(source, "ImageDescriptor");
+			descriptor.setAttribute("imageLeftPosition", attribute(sourceDescriptor, "imageLeftPosition", "0"));
+			descriptor.setAttribute("imageTopPosition", attribute(sourceDescriptor, "imageTopPosition", "0"));
+		}
+
+		// e.g. the loop count and comments
+		for (String extensions : new String[] { "ApplicationExtensions", "CommentExtensions" }) {
+			IIOMetadataNode node = child(source, extensions);
+			if (node != null)
+				tree.appendChild(node);
+		}
+		setFromTree(output, GIF_IMAGE_FORMAT, tree);
+		return output;
+	}
+
+	private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+		if (parent == null)
+			return null;
+		for (int i = 0; i < parent.getLength(); i++)
+			if (parent.item(i).getNodeName().equals(name))
+				return (IIOMetadataNode) parent.item(i);
+		return null;
+	}
+
+	private static String attribute(IIOMetadataNode node, String name, String fallback) {
+		return node == null || !node.hasAttribute(name) ? fallback : node.getAttribute(name);
+	}
+
+	private static void setFromTree(IIOMetadata metadata, String format, IIOMetadataNode tree) throws IOException {
+		try {
+			metadata.setFromTree(format, tree);
+		} catch (IIOInvalidTreeException e) {
+			throw new IOException("The GIF metadata cannot be carried over: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * This class represents the full picture of an animated GIF as shown while
+	 * its frames are played. Each frame is drawn onto it at its offset, after the
+	 * previous frame has been disposed of as its disposal method says.
+	 */
+	private static final class GifCanvas {
+
+		private final BufferedImage screen;
+		private BufferedImage beforeLast;
+		private String lastDisposal = "none";
+		private int lastLeft;
+		private int lastTop;
+		private int lastWidth;
+		private int lastHeight;
+
+		/**
+		 * Creates a transparent canvas of the screen size of the GIF being read.
+		 */
+		private GifCanvas(ImageReader reader) throws IOException {
+			IIOMetadata stream = reader.getStreamMetadata();
+			IIOMetadataNode screen = stream == null ? null
+					: child((IIOMetadataNode) stream.getAsTree(GIF_STREAM_FORMAT), "LogicalScreenDescriptor");
+			int width = Integer.parseInt(attribute(screen, "logicalScreenWidth", "0"));
+			int height = Integer.parseInt(attribute(screen, "logicalScreenHeight", "0"));
+			if (width <= 0 || height <= 0) {
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+			}
+			this.screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		}
+
+		/**
+		 * Disposes of the previous frame, draws the given frame and returns a copy
+		 * of the full picture, with the metadata of the frame.
+		 */
+		private IIOImage compose(IIOImage frame) {
+			Graphics2D g = this.screen.createGraphics();
+			if (this.lastDisposal.equals("restoreToBackgroundColor")) {
+				g.setComposite(AlphaComposite.Clear);
+				g.fillRect(this.lastLeft, this.lastTop, this.lastWidth, this.lastHeight);
+			} else if (this.lastDisposal.equals("restoreToPrevious") && this.beforeLast != null) {
+				g.setComposite(AlphaComposite.Src);
+				g.drawImage(this.beforeLast, 0, 0, null);
+			}
+
+			IIOMetadataNode tree = (IIOMetadataNode) frame.getMetadata().getAsTree(GIF_IMAGE_FORMAT);
+			IIOMetadataNode descriptor = child(tree, "ImageDescriptor");
+			BufferedImage image = (BufferedImage) frame.getRenderedImage();
+			this.lastLeft = Integer.parseInt(attribute(descriptor, "imageLeftPosition", "0"));
+			this.lastTop = Integer.parseInt(attribute(descriptor, "imageTopPosition", "0"));
+			this.lastWidth = image.getWidth();
+			this.lastHeight = image.getHeight();
+			this.lastDisposal = attribute(child(tree, "GraphicControlExtension"), "disposalMethod", "none");
+			this.beforeLast = this.lastDisposal.equals("restoreToPrevious") ? copy(this.screen) : null;
+
+			g.setComposite(AlphaComposite.SrcOver);
+			g.drawImage(image, this.lastLeft, this.lastTop, null);
+			g.dispose();
+			return new IIOImage(copy(this.screen), null, frame.getMetadata());
+		}
+
+		private static BufferedImage copy(BufferedImage image) {
+			BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+			copy.setData(image.getRaster());
+			return copy;
+		}
+	}
+}
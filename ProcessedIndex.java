@@ -0,0 +1,86 @@
+package assign11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * This class represents a small index, kept in a file, of the input images
+ * that have already been processed. An image counts as processed if its size
+ * and modification time and the filter chain are the same as when it was last
+ * processed, so a restarted WatchFolderDaemon skips work it has already done
+ * but picks up files that changed.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class ProcessedIndex {
+
+	private final Path file;
+	private final Properties entries;
+
+	/**
+	 * Creates an index stored in the given file, loading the entries already in
+	 * it if the file exists.
+	 *
+	 * @param file - the index file.
+	 * @throws IOException if the file exists but cannot be read.
+	 */
+	public ProcessedIndex(Path file) throws IOException {
+		this.file = file;
+		this.entries = new Properties();
+		if (Files.exists(file))
+			try (InputStream in = Files.newInputStream(file)) {
+				this.entries.load(in);
+			}
+	}
+
+	/**
+	 * Determines whether the given input was already processed with the same
+	 * signature, i.e. with the same chain and without changing since.
+	 *
+	 * @param input     - the input image.
+	 * @param signature - the signature of the input now, from signature.
+	 * @return - true if the input can be skipped.
+	 */
+	public synchronized boolean isProcessed(Path input, String signature) {
+		return signature.equals(this.entries.getProperty(input.getFileName().toString()));
+	}
+
+	/**
+	 * Records that the given input was processed and saves the index. The
+	 * signature must be the one taken before the input was read, so an input
+	 * that changed while it was processed is not recorded as done. The file is
+	 * replaced in one step, so a crash never leaves a partly written index.
+	 *
+	 * @param input     - the input image.
+	 * @param signature - the signature of the input when it was read.
+	 * @throws IOException if the index cannot be saved.
+	 */
+	public synchronized void markProcessed(Path input, String signature) throws IOException {
+		this.entries.setProperty(input.getFileName().toString(), signature);
+
+		Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			this.entries.store(out, "Images processed by the watch-folder daemon");
+		}
+		Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Gets the signature of an input for the given chain: its size, its
+	 * modification time and the chain.
+	 *
+	 * @param input - the input image.
+	 * @param chain - the filter chain.
+	 * @return - the signature.
+	 * @throws IOException if the input cannot be examined.
+	 */
+	public static String signature(Path input, FilterChain chain) throws IOException {
+		return Files.size(input) + ":" + Files.getLastModifiedTime(input).toMillis() + ":" + chain;
+	}
+}
@@ -0,0 +1,114 @@
+package assign11;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.util.ArrayList;
+
+import javax.swing.JComponent;
+
+import meeting21.Rectangle;
+import meeting21.Shape;
+
+/**
+ * This class represents a transparent layer drawn on top of an ImagePanel that
+ * shows the crop selection. Only the area of the selection that changed is
+ * repainted while the user drags, so the image underneath does not have to be
+ * redrawn as a whole on every mouse event.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class SelectionOverlay extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	private Rectangle selectedRectangle;
+	private ArrayList<Shape> shapes;
+	private Color color;
+
+	/**
+	 * Creates a new overlay that draws the selection in the given color.
+	 *
+	 * @param color - the (translucent) fill color of the selection.
+	 */
+	public SelectionOverlay(Color color) {
+		this.color = color;
+		this.shapes = new ArrayList<Shape>();
+		this.setOpaque(false);
+	}
+
+	/**
+	 * Starts a new selection at the given position.
+	 *
+	 * @param x - X-coordinate of the corner of the selection.
+	 * @param y - Y-coordinate of the corner of the selection.
+	 */
+	public void startSelection(int x, int y) {
+		clearSelection();
+		this.selectedRectangle = new Rectangle(x, y, 0, 0, this.color);
+	}
+
+	/**
+	 * Moves the opposite corner of the selection to the given position and
+	 * repaints the area covered by the selection before and after the move.
+	 *
+	 * @param x - X-coordinate of the opposite corner.
+	 * @param y - Y-coordinate of the opposite corner.
+	 */
+	public void resizeSelection(int x, int y) {
+		if (this.selectedRectangle == null)
+			return;
+
+		java.awt.Rectangle dirty = selectionBounds();
+		this.selectedRectangle.setSize(x - selectedRectangle.getPositionX(), y - selectedRectangle.getPositionY());
+		dirty.add(selectionBounds());
+		repaint(dirty.x, dirty.y, dirty.width + 1, dirty.height + 1);
+	}
+
+	/**
+	 * Removes the selection and repaints the area it covered.
+	 */
+	public void clearSelection() {
+		if (this.selectedRectangle != null) {
+			java.awt.Rectangle dirty = selectionBounds();
+			this.selectedRectangle = null;
+			repaint(dirty.x, dirty.y, dirty.width + 1, dirty.height + 1);
+		}
+	}
+
+	/**
+	 * Gets the current selection.
+	 *
+	 * @return - the selected rectangle, or null if nothing is selected.
+	 */
+	public Rectangle getSelectedRectangle() {
+		return this.selectedRectangle;
+	}
+
+	/**
+	 * Paints the selection. The image underneath is painted by the ImagePanel.
+	 *
+	 * @param g -- graphics context onto which we can draw
+	 */
+	@Override
+	protected void paintComponent(Graphics g) {
+		if (selectedRectangle != null) {
+
+			g.setColor(this.color);
+			g.fillRect(selectedRectangle.getPositionX(), selectedRectangle.getPositionY(), selectedRectangle.getSizeX(),
+					selectedRectangle.getSizeY());
+			for (Shape o : this.shapes)
+
+				o.paintMe(g);
+		}
+	}
+
+	/**
+	 * Gets the area on screen covered by the selection. A selection dragged up or
+	 * to the left has a negative size and covers nothing.
+	 */
+	private java.awt.Rectangle selectionBounds() {
+		return new java.awt.Rectangle(selectedRectangle.getPositionX(), selectedRectangle.getPositionY(),
+				Math.max(0, selectedRectangle.getSizeX()), Math.max(0, selectedRectangle.getSizeY()));
+	}
+}
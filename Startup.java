@@ -0,0 +1,127 @@
+package assign11;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+import javax.swing.filechooser.FileSystemView;
+
+/**
+ * This class shortens and measures the start of the Image Processor.
+ *
+ * The first ImageIO call scans for image plugins and loads the codecs, and the
+ * first file dialog loads the file system view; both take long enough to be
+ * noticed. warmUpInBackground does that work on a low-priority thread while
+ * the frame is being shown, so the first open is fast.
+ *
+ * The time from the start of the JVM to the first frame and to the first image
+ * shown is printed once each.
+ *
+ * Class loading can be shortened further with an AppCDS archive. The --train
+ * mode of ImageProcessorProgram runs through the start-up path once and exits,
+ * so with the classes packed in a JAR (AppCDS does not archive classes loaded
+ * from directories) an archive can be recorded with
+ *
+ * java -XX:ArchiveClassesAtExit=image-processor.jsa -cp image-processor.jar
+ * assign11.ImageProcessorProgram --train
+ *
+ * and then used with
+ *
+ * java -XX:SharedArchiveFile=image-processor.jsa -cp image-processor.jar
+ * assign11.ImageProcessorProgram
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class Startup {
+
+	private static final long MAIN_NANOS = System.nanoTime();
+	private static final AtomicBoolean FIRST_FRAME_REPORTED = new AtomicBoolean();
+	private static final AtomicBoolean FIRST_IMAGE_REPORTED = new AtomicBoolean();
+	private static volatile long openChosenNanos;
+
+	/**
+	 * Starts warming up ImageIO, the file system view and the filters on a
+	 * low-priority daemon thread.
+	 */
+	public static void warmUpInBackground() {
+		Thread thread = new Thread(Startup::warmUp, "startup-warm-up");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Loads the ImageIO plugins and codecs by writing and reading a tiny image in
+	 * each format the program uses, loads the file system view used by file
+	 * dialogs, and runs the filters once on a tiny image. The tiny image does
+	 * not use the result cache, so the cache and its counters only hold the
+	 * session's own images.
+	 */
+	public static void warmUp() {
+		BufferedImage tiny = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+		for (String format : new String[] { "png", "jpg", "gif", "bmp" }) {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ImageIO.write(tiny, format, bytes);
+				ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+			} catch (IOException e) {
+				System.out.println("The " + format + " codec could not be warmed up: " + e.getMessage());
+			}
+		}
+
+		FileSystemView view = FileSystemView.getFileSystemView();
+		view.getFiles(view.getDefaultDirectory(), true);
+		view.getRoots();
+
+		Image image = new Image(tiny);
+		image.setResultCaching(false);
+		image.applyFilterChain(FilterChain.parse("rotate;crop:1,1,6,6;zoom:2;brightness:10;sepia;hue:30"));
+		image.toBufferedImage();
+	}
+
+	/**
+	 * Records that the user chose an image to open, so the time until it is shown
+	 * can be reported.
+	 */
+	public static void markOpenChosen() {
+		openChosenNanos = System.nanoTime();
+	}
+
+	/**
+	 * Prints the time until the first frame was shown. Only the first call
+	 * prints anything.
+	 */
+	public static void reportFirstFrame() {
+		if (FIRST_FRAME_REPORTED.compareAndSet(false, true))
+			System.out.println("Startup: first frame shown " + sinceJvmStart() + " ms after the JVM started ("
+					+ sinceMain() + " ms after main)");
+	}
+
+	/**
+	 * Prints the time until the first image was shown, i.e. until ImagePanel drew
+	 * the first tile of an image on screen. Only the first call prints anything.
+	 */
+	public static void reportFirstImage() {
+		if (FIRST_IMAGE_REPORTED.compareAndSet(false, true))
+			System.out.println("Startup: first image shown " + sinceJvmStart() + " ms after the JVM started ("
+					+ (System.nanoTime() - openChosenNanos) / 1_000_000 + " ms after it was chosen)");
+	}
+
+	private static long sinceMain() {
+		return (System.nanoTime() - MAIN_NANOS) / 1_000_000;
+	}
+
+	/**
+	 * Gets the time since the JVM started, or since this class was loaded if the
+	 * start time of the process is not available.
+	 */
+	private static long sinceJvmStart() {
+		return ProcessHandle.current().info().startInstant()
+				.map(start -> Instant.now().toEpochMilli() - start.toEpochMilli()).orElse(sinceMain());
+	}
+}
@@ -0,0 +1,142 @@
+package assign11;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class represents a summed-area table (integral image) of an image: for
+ * each color channel, the sum of the channel over every rectangle that starts
+ * at the top-left corner. With it, the sum or mean of a channel over any
+ * rectangle takes four lookups, no matter how large the rectangle is.
+ *
+ * The table of a channel is built the first time the channel is queried, so a
+ * query that only needs one channel only pays for that one. The table reads
+ * the image it was made for, so that image must not change while the table is
+ * used; the tables Image hands out read one published version of the image,
+ * which stays the same while the image is filtered further. Queries may run on
+ * several threads at once.
+ *
+ * Sums are stored in ints and computed with wrap-around arithmetic, which is
+ * exact for any rectangle whose true sum fits in 32 bits unsigned, i.e. up to
+ * MAX_EXACT_AREA pixels. Larger rectangles are summed in bands of that size.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class SummedAreaTable {
+
+	/** Largest number of pixels whose channel sum is sure to fit in 32 bits. */
+	public static final long MAX_EXACT_AREA = 0xFFFFFFFFL / 255;
+
+	private final Image image;
+	private final int rows;
+	private final int cols;
+	private final AtomicReferenceArray<int[]> sums;
+
+	/**
+	 * Creates a table for the given image. No channel is summed yet.
+	 *
+	 * @param image - the image; it must not change while the table is used.
+	 */
+	public SummedAreaTable(Image image) {
+		this.image = image;
+		this.rows = image.getNumberOfRows();
+		this.cols = image.getNumberOfColumns();
+		this.sums = new AtomicReferenceArray<int[]>(3);
+	}
+
+	/**
+	 * Gets the sum of a channel over a rectangle of pixels.
+	 *
+	 * @param channel - Image.RED, Image.GREEN or Image.BLUE.
+	 * @param top     - first row of the rectangle.
+	 * @param left    - first column of the rectangle.
+	 * @param bottom  - row after the last row of the rectangle.
+	 * @param right   - column after the last column of the rectangle.
+	 * @return - the sum of the channel amounts in the rectangle.
+	 */
+	public long sum(int channel, int top, int left, int bottom, int right) {
+		int[] table = channelSums(channel);
+		int bandRows = (int) Math.max(1, MAX_EXACT_AREA / Math.max(1, right - left));
+		long total = 0;
+		for (int from = top; from < bottom; from += bandRows) {
+			int to = Math.min(bottom, from + bandRows);
+			int stride = this.cols + 1;
+			int band = table[to * stride + right] - table[from * stride + right] - table[to * stride + left]
+					+ table[from * stride + left];
+			total += Integer.toUnsignedLong(band);
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the mean of a channel over a rectangle of pixels, rounded to the
+	 * nearest whole amount.
+	 *
+	 * @param channel - Image.RED, Image.GREEN or Image.BLUE.
+	 * @param top     - first row of the rectangle.
+	 * @param left    - first column of the rectangle.
+	 * @param bottom  - row after the last row of the rectangle.
+	 * @param right   - column after the last column of the rectangle.
+	 * @return - the mean amount, 0-255.
+	 */
+	public int mean(int channel, int top, int left, int bottom, int right) {
+		long count = (long) (bottom - top) * (right - left);
+		return (int) ((sum(channel, top, left, bottom, right) + count / 2) / count);
+	}
+
+	/**
+	 * Gets the mean color over a rectangle of pixels.
+	 *
+	 * @param top    - first row of the rectangle.
+	 * @param left   - first column of the rectangle.
+	 * @param bottom - row after the last row of the rectangle.
+	 * @param right  - column after the last column of the rectangle.
+	 * @return - a pixel with the mean amount of each channel.
+	 */
+	public Pixel meanPixel(int top, int left, int bottom, int right) {
+		return new Pixel(mean(Image.RED, top, left, bottom, right), mean(Image.GREEN, top, left, bottom, right),
+				mean(Image.BLUE, top, left, bottom, right));
+	}
+
+	/**
+	 * Gets the table of one channel, building it on first use. Entry (i, j) holds
+	 * the sum over rows before i and columns before j.
+	 */
+	private int[] channelSums(int channel) {
+		int[] built = this.sums.get(channel);
+		if (built != null)
+			return built;
+		synchronized (this) {
+			if (this.sums.get(channel) == null)
+				this.sums.set(channel, buildChannel(channel));
+		}
+		return this.sums.get(channel);
+	}
+
+	private int[] buildChannel(int channel) {
+		int stride = this.cols + 1;
+		int[] table = new int[(this.rows + 1) * stride];
+		// every entry is written again if the read has to be repeated
+		this.image.readPixels(() -> {
+			for (int i = 1; i <= this.rows; i++) {
+				int rowSum = 0;
+				for (int j = 1; j <= this.cols; j++) {
+					rowSum += this.image.getChannelAmount(channel, i - 1, j - 1);
+					table[i * stride + j] = table[(i - 1) * stride + j] + rowSum;
+				}
+			}
+		});
+		return table;
+	}
+
+	/**
+	 * Estimates the number of bytes the table takes once every channel is built.
+	 *
+	 * @param rows - number of rows of the image.
+	 * @param cols - number of columns of the image.
+	 * @return - estimated size in bytes.
+	 */
+	static long estimateBytes(int rows, int cols) {
+		return 3L * 4 * (rows + 1) * (cols + 1);
+	}
+}
@@ -0,0 +1,101 @@
+package assign11;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents a bounded cache of rendered tiles of an image, keyed by
+ * tile row and column. Once the cache holds more tiles than its capacity, the
+ * least recently used tiles are evicted, so the memory it takes does not
+ * depend on the size of the image.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class TileCache {
+
+	private final LinkedHashMap<Long, BufferedImage> tiles;
+	private int capacity;
+	private long pixelCount;
+
+	/**
+	 * Creates a new, empty cache.
+	 *
+	 * @param capacity - number of tiles the cache may hold.
+	 */
+	public TileCache(int capacity) {
+		this.tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Gets the tile at the given tile row and column.
+	 *
+	 * @param tileRow - row of the tile.
+	 * @param tileCol - column of the tile.
+	 * @return - the tile, or null if it is not cached.
+	 */
+	public synchronized BufferedImage get(int tileRow, int tileCol) {
+		return this.tiles.get(key(tileRow, tileCol));
+	}
+
+	/**
+	 * Stores the tile at the given tile row and column, evicting the least
+	 * recently used tiles if the cache is full.
+	 *
+	 * @param tileRow - row of the tile.
+	 * @param tileCol - column of the tile.
+	 * @param tile    - the rendered tile.
+	 */
+	public synchronized void put(int tileRow, int tileCol, BufferedImage tile) {
+		BufferedImage previous = this.tiles.put(key(tileRow, tileCol), tile);
+		if (previous != null)
+			this.pixelCount -= (long) previous.getWidth() * previous.getHeight();
+		this.pixelCount += (long) tile.getWidth() * tile.getHeight();
+		evict();
+	}
+
+	/**
+	 * Changes the number of tiles the cache may hold, evicting tiles if it now
+	 * holds too many.
+	 *
+	 * @param capacity - the new capacity.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * Gets the number of tiles in the cache.
+	 *
+	 * @return - number of tiles.
+	 */
+	public synchronized int size() {
+		return this.tiles.size();
+	}
+
+	/**
+	 * Estimates the memory held by the cached tiles.
+	 *
+	 * @return - estimated size in bytes.
+	 */
+	public synchronized long estimateBytes() {
+		return 4 * this.pixelCount;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Long, BufferedImage>> eldest = this.tiles.entrySet().iterator();
+		while (this.tiles.size() > this.capacity && eldest.hasNext()) {
+			BufferedImage tile = eldest.next().getValue();
+			this.pixelCount -= (long) tile.getWidth() * tile.getHeight();
+			eldest.remove();
+		}
+	}
+
+	private static Long key(int tileRow, int tileCol) {
+		return ((long) tileRow << 32) | (tileCol & 0xFFFFFFFFL);
+	}
+}
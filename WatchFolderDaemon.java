@@ -0,0 +1,238 @@
+package assign11;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * This class represents a daemon that watches a folder and runs a filter chain
+ * on every image that appears in it or changes, writing the results as PNG
+ * files to an output folder. The output keeps the full input name, e.g.
+ * a.jpg becomes a.jpg.png, so inputs that differ only in extension do not
+ * overwrite each other.
+ *
+ * A file is only processed once it has stopped changing for a short quiet
+ * period, so images still being copied into the folder are not read half
+ * written. Processing runs on a pool of workers, and only a bounded number of
+ * files are handed to it at once. A file that finds no room is checked again
+ * after another quiet period instead of queuing without limit, so the checks
+ * of other files are never held up. A file that is still being processed when
+ * it changes again is checked again later too, so two workers never write the
+ * same output at once. Processed files are recorded in a
+ * ProcessedIndex in the output folder, with the size and modification time
+ * they had before they were read, so a restart only processes files that are
+ * new or changed, and a file rewritten while it was processed is processed
+ * again.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class WatchFolderDaemon {
+
+	private static final String INDEX_FILE_NAME = ".processed-index";
+	private static final long QUIET_MILLIS = 1000;
+
+	private final Path inputFolder;
+	private final Path outputFolder;
+	private final FilterChain chain;
+	private final ProcessedIndex index;
+	private final ScheduledExecutorService debouncer;
+	private final ExecutorService workers;
+	private final Semaphore workerSlots;
+	private final HashMap<Path, ScheduledFuture<?>> pendingChecks;
+	private final HashSet<Path> filesInProgress;
+
+	/**
+	 * Creates a new daemon. Nothing is processed until run is called.
+	 *
+	 * @param inputFolder  - the folder to watch.
+	 * @param outputFolder - the folder to write results to; created if needed.
+	 * @param chain        - the filters to apply to each image.
+	 * @param workerCount  - number of images processed at once.
+	 * @throws IOException if the output folder or its index cannot be opened.
+	 * @throws IllegalArgumentException if the two folders are the same.
+	 */
+	public WatchFolderDaemon(Path inputFolder, Path outputFolder, FilterChain chain, int workerCount)
+			throws IOException {
+		this.inputFolder = inputFolder.toAbsolutePath().normalize();
+		this.outputFolder = outputFolder.toAbsolutePath().normalize();
+		if (this.inputFolder.equals(this.outputFolder))
+			throw new IllegalArgumentException("The output folder must differ from the watched folder");
+		this.chain = chain;
+		Files.createDirectories(this.outputFolder);
+		this.index = new ProcessedIndex(this.outputFolder.resolve(INDEX_FILE_NAME));
+		this.debouncer = Executors.newSingleThreadScheduledExecutor();
+		this.workers = Executors.newFixedThreadPool(workerCount);
+		// files being processed plus files queued for a worker
+		this.workerSlots = new Semaphore(5 * workerCount);
+		this.pendingChecks = new HashMap<Path, ScheduledFuture<?>>();
+		this.filesInProgress = new HashSet<Path>();
+	}
+
+	/**
+	 * Processes the images already in the input folder that are not in the index,
+	 * then watches the folder until the thread is interrupted.
+	 *
+	 * @throws IOException if the folder cannot be watched.
+	 */
+	public void run() throws IOException {
+		System.out.println("Watching " + this.inputFolder + " -> " + this.outputFolder + " with chain \"" + this.chain
+				+ "\"");
+
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			this.inputFolder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			scanFolder();
+
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watcher.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						scanFolder();
+					else
+						scheduleCheck(this.inputFolder.resolve((Path) event.context()));
+				}
+				if (!key.reset())
+					break;
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			this.debouncer.shutdownNow();
+			this.workers.shutdown();
+		}
+	}
+
+	/**
+	 * Schedules a check for every image in the input folder.
+	 */
+	private void scanFolder() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.inputFolder)) {
+			for (Path file : files)
+				scheduleCheck(file);
+		}
+	}
+
+	/**
+	 * Schedules the given file to be checked once the quiet period has passed,
+	 * replacing any check already scheduled for it.
+	 */
+	private void scheduleCheck(Path file) {
+		if (!isImageFile(file))
+			return;
+
+		synchronized (this.pendingChecks) {
+			ScheduledFuture<?> previous = this.pendingChecks.get(file);
+			if (previous != null)
+				previous.cancel(false);
+			String before = stat(file);
+			this.pendingChecks.put(file,
+					this.debouncer.schedule(() -> checkFile(file, before), QUIET_MILLIS, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	/**
+	 * Hands the file to a worker if it has not changed during the quiet period,
+	 * or waits another quiet period if it has, if a worker is still processing
+	 * it, or if the workers have no room.
+	 */
+	private void checkFile(Path file, String before) {
+		synchronized (this.pendingChecks) {
+			this.pendingChecks.remove(file);
+		}
+
+		String now = stat(file);
+		if (now == null)
+			return;
+		if (!now.equals(before)) {
+			scheduleCheck(file);
+			return;
+		}
+		synchronized (this.pendingChecks) {
+			if (this.filesInProgress.contains(file) || !this.workerSlots.tryAcquire()) {
+				scheduleCheck(file);
+				return;
+			}
+			this.filesInProgress.add(file);
+		}
+		this.workers.execute(() -> {
+			try {
+				processFile(file);
+			} finally {
+				synchronized (this.pendingChecks) {
+					this.filesInProgress.remove(file);
+				}
+				this.workerSlots.release();
+			}
+		});
+	}
+
+	/**
+	 * Runs the filter chain on one image and records it in the index.
+	 */
+	private void processFile(Path file) {
+		try {
+			// taken before reading, so a change made while processing is not recorded as done
+			String signature = ProcessedIndex.signature(file, this.chain);
+			if (this.index.isProcessed(file, signature))
+				return;
+
+			BufferedImage input = ImageIO.read(file.toFile());
+			if (input == null) {
+				System.out.println("Skipping " + file.getFileName() + ": not an image in a supported format.");
+				return;
+			}
+			Image image = new Image(input);
+			image.setResultCaching(false);
+			image.applyFilterChain(this.chain);
+
+			String name = file.getFileName().toString();
+			Path output = this.outputFolder.resolve(name + ".png");
+			Path temp = this.outputFolder.resolve("." + output.getFileName() + ".tmp");
+			ImageIO.write(image.toBufferedImage(), "png", temp.toFile());
+			Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			this.index.markProcessed(file, signature);
+			System.out.println("Processed " + name + " -> " + output.getFileName());
+		} catch (IOException | RuntimeException e) {
+			System.out.println("The image " + file.getFileName() + " cannot be processed: " + e);
+		}
+	}
+
+	/**
+	 * Gets the size and modification time of a file, or null if it is gone.
+	 */
+	private static String stat(Path file) {
+		try {
+			return Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static boolean isImageFile(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		return !name.startsWith(".") && (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg")
+				|| name.endsWith(".gif") || name.endsWith(".bmp"));
+	}
+}
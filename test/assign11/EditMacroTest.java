@@ -0,0 +1,75 @@
+package assign11;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * This class checks that a crop recorded in an EditMacro is reproduced exactly
+ * when the macro is replayed on an image of the size it was recorded on. It
+ * throws an AssertionError on the first crop that is not.
+ *
+ * It is kept out of the shipped sources; compile it together with them and
+ * run assign11.EditMacroTest.
+ *
+ * @author Khang Hoang Nguyen
+ * @version Dec 07 2023
+ */
+public class EditMacroTest {
+
+	/**
+	 * Records and replays every crop of the rows of images up to 40 rows.
+	 *
+	 * @param args - not used.
+	 */
+	public static void main(String[] args) {
+		// a one-row crop whose end, 15/29 of 29 rows, scales back to slightly more than 15
+		checkSameSizeReplay(29, 3, 14, 0, 14, 2);
+
+		int checked = 0;
+		for (int rows = 1; rows <= 40; rows++)
+			for (int startX = 0; startX < rows; startX++)
+				for (int endX = startX; endX < rows; endX++) {
+					checkSameSizeReplay(rows, 2, startX, 0, endX, 1);
+					checked++;
+				}
+		System.out.println("Same-size replay reproduced all " + checked + " recorded crops.");
+	}
+
+	/**
+	 * Crops an image directly and through a recorded macro, and fails if the
+	 * results differ.
+	 */
+	private static void checkSameSizeReplay(int rows, int cols, int startX, int startY, int endX, int endY) {
+		EditMacro macro = new EditMacro();
+		macro.recordCrop(startX, startY, endX, endY, rows, cols);
+
+		Image expected = numbered(rows, cols);
+		expected.cropFilter(startX, startY, endX, endY);
+		Image replayed = numbered(rows, cols);
+		macro.applyTo(replayed);
+
+		String crop = rows + "x" + cols + " crop " + startX + "," + startY + ".." + endX + "," + endY;
+		if (replayed.getNumberOfRows() != expected.getNumberOfRows()
+				|| replayed.getNumberOfColumns() != expected.getNumberOfColumns())
+			throw new AssertionError(crop + " replayed as " + replayed.getNumberOfRows() + "x"
+					+ replayed.getNumberOfColumns() + " instead of " + expected.getNumberOfRows() + "x"
+					+ expected.getNumberOfColumns());
+
+		BufferedImage want = expected.toBufferedImage();
+		BufferedImage got = replayed.toBufferedImage();
+		for (int i = 0; i < want.getHeight(); i++)
+			for (int j = 0; j < want.getWidth(); j++)
+				if (want.getRGB(j, i) != got.getRGB(j, i))
+					throw new AssertionError(crop + " replayed a different region");
+	}
+
+	/**
+	 * Creates an image whose pixels tell their row and column apart.
+	 */
+	private static Image numbered(int rows, int cols) {
+		BufferedImage image = new BufferedImage(cols, rows, BufferedImage.TYPE_INT_RGB);
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < cols; j++)
+				image.setRGB(j, i, (i << 8) | j);
+		return new Image(image);
+	}
+}